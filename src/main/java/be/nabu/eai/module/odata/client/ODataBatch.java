@@ -0,0 +1,302 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * Builds and parses multipart $batch requests as described in:
+ * http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part1-protocol.html#sec_MultipartBatchFormat
+ *
+ * Each changeset is executed atomically by the server, requests outside of a changeset are executed independently.
+ * We use the multipart format rather than the json format because not all providers (e.g. dynamics) support the latter.
+ */
+public class ODataBatch {
+
+	// the multipart format is line based and uses latin-1 safe headers, the bodies themselves are passed along as bytes
+	private static final Charset RAW = Charset.forName("ISO-8859-1");
+	private static final Pattern BOUNDARY = Pattern.compile("(?i)boundary=\"?([^\";]+)\"?");
+	private static final Pattern STATUS = Pattern.compile("^HTTP/[0-9.]+\\s+([0-9]{3})\\s*(.*)$");
+
+	private String scheme, host;
+	private String boundary = "batch_" + UUID.randomUUID().toString().replace("-", "");
+	private List<List<HTTPRequest>> groups = new ArrayList<List<HTTPRequest>>();
+	private List<Boolean> atomic = new ArrayList<Boolean>();
+
+	public ODataBatch(String scheme, String host) {
+		this.scheme = scheme;
+		this.host = host;
+	}
+
+	/**
+	 * All the requests in a changeset succeed or fail together
+	 */
+	public void addChangeset(List<? extends HTTPRequest> requests) {
+		groups.add(new ArrayList<HTTPRequest>(requests));
+		atomic.add(true);
+	}
+
+	public void addRequest(HTTPRequest request) {
+		List<HTTPRequest> single = new ArrayList<HTTPRequest>();
+		single.add(request);
+		groups.add(single);
+		atomic.add(false);
+	}
+
+	public int size() {
+		int size = 0;
+		for (List<HTTPRequest> group : groups) {
+			size += group.size();
+		}
+		return size;
+	}
+
+	public String getContentType() {
+		return "multipart/mixed; boundary=" + boundary;
+	}
+
+	public byte[] getContent() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int contentId = 1;
+		for (int i = 0; i < groups.size(); i++) {
+			write(output, "--" + boundary + "\r\n");
+			if (atomic.get(i)) {
+				String changeset = "changeset_" + UUID.randomUUID().toString().replace("-", "");
+				write(output, "Content-Type: multipart/mixed; boundary=" + changeset + "\r\n\r\n");
+				for (HTTPRequest request : groups.get(i)) {
+					write(output, "--" + changeset + "\r\n");
+					writeRequest(output, request, contentId++);
+				}
+				write(output, "--" + changeset + "--\r\n");
+			}
+			else {
+				for (HTTPRequest request : groups.get(i)) {
+					writeRequest(output, request, contentId++);
+				}
+			}
+		}
+		write(output, "--" + boundary + "--\r\n");
+		return output.toByteArray();
+	}
+
+	/**
+	 * Wraps the batch in a part that can be sent to the $batch endpoint
+	 */
+	public ModifiablePart toPart() throws IOException {
+		byte[] content = getContent();
+		PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Content-Length", Integer.toString(content.length)),
+			new MimeHeader("Content-Type", getContentType()),
+			new MimeHeader("OData-Version", "4.0"),
+			new MimeHeader("Accept", "multipart/mixed"),
+			new MimeHeader("Host", host)
+		);
+		part.setReopenable(true);
+		return part;
+	}
+
+	private void writeRequest(ByteArrayOutputStream output, HTTPRequest request, int contentId) throws IOException {
+		write(output, "Content-Type: application/http\r\n");
+		write(output, "Content-Transfer-Encoding: binary\r\n");
+		write(output, "Content-ID: " + contentId + "\r\n\r\n");
+		String target = request.getTarget();
+		// absolute paths are allowed but not supported by every provider, absolute urls are
+		if (target.startsWith("/")) {
+			target = scheme + "://" + host + target;
+		}
+		write(output, request.getMethod() + " " + target + " HTTP/1.1\r\n");
+		byte[] content = null;
+		if (request.getContent() != null) {
+			for (Header header : request.getContent().getHeaders()) {
+				// the host is part of the absolute url and the length is recalculated by the server from the part
+				if (!"Host".equalsIgnoreCase(header.getName()) && !"Content-Length".equalsIgnoreCase(header.getName())) {
+					write(output, header.getName() + ": " + MimeUtils.getFullHeaderValue(header) + "\r\n");
+				}
+			}
+			if (request.getContent() instanceof ContentPart) {
+				ReadableContainer<ByteBuffer> readable = ((ContentPart) request.getContent()).getReadable();
+				if (readable != null) {
+					try {
+						content = IOUtils.toBytes(readable);
+					}
+					finally {
+						readable.close();
+					}
+				}
+			}
+		}
+		write(output, "\r\n");
+		if (content != null && content.length > 0) {
+			output.write(content);
+		}
+		write(output, "\r\n");
+	}
+
+	private static void write(ByteArrayOutputStream output, String value) throws IOException {
+		output.write(value.getBytes(RAW));
+	}
+
+	/**
+	 * Returns the responses in the order of the original requests.
+	 * If a changeset fails as a whole, the server only sends back a single response for it, in that case we repeat that response for every request in the changeset.
+	 */
+	public List<HTTPResponse> parse(HTTPResponse response) throws IOException {
+		return parse(response, false);
+	}
+	
+	/**
+	 * If partial is true, a response with fewer parts than requested is accepted (e.g. the server stopped at the first error), the list then only contains the responses for the requests that were processed.
+	 */
+	public List<HTTPResponse> parse(HTTPResponse response, boolean partial) throws IOException {
+		List<HTTPResponse> responses = new ArrayList<HTTPResponse>();
+		if (!(response.getContent() instanceof ContentPart)) {
+			throw new IllegalStateException("The batch response does not contain any content");
+		}
+		Header contentType = MimeUtils.getHeader("Content-Type", response.getContent().getHeaders());
+		String responseBoundary = contentType == null ? null : getBoundary(MimeUtils.getFullHeaderValue(contentType));
+		if (responseBoundary == null) {
+			throw new IllegalStateException("The batch response is not multipart");
+		}
+		byte[] bytes;
+		ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+		try {
+			bytes = IOUtils.toBytes(readable);
+		}
+		finally {
+			readable.close();
+		}
+		List<String> parts = split(new String(bytes, RAW), responseBoundary);
+		if (parts.size() > groups.size() || (!partial && parts.size() != groups.size())) {
+			throw new IllegalStateException("Expected " + groups.size() + " batch parts in the response but received " + parts.size());
+		}
+		for (int i = 0; i < parts.size(); i++) {
+			String part = parts.get(i);
+			int headerEnd = part.indexOf("\r\n\r\n");
+			String headers = headerEnd < 0 ? part : part.substring(0, headerEnd);
+			String body = headerEnd < 0 ? "" : part.substring(headerEnd + 4);
+			String nested = getBoundary(headers);
+			List<HTTPResponse> groupResponses = new ArrayList<HTTPResponse>();
+			if (nested != null) {
+				for (String changesetPart : split(body, nested)) {
+					int changesetHeaderEnd = changesetPart.indexOf("\r\n\r\n");
+					groupResponses.add(parseResponse(changesetHeaderEnd < 0 ? "" : changesetPart.substring(changesetHeaderEnd + 4)));
+				}
+			}
+			else {
+				groupResponses.add(parseResponse(body));
+			}
+			int expected = groups.get(i).size();
+			if (groupResponses.size() == expected) {
+				responses.addAll(groupResponses);
+			}
+			else if (groupResponses.size() == 1) {
+				for (int j = 0; j < expected; j++) {
+					responses.add(groupResponses.get(0));
+				}
+			}
+			else {
+				throw new IllegalStateException("Expected " + expected + " responses for changeset " + i + " but received " + groupResponses.size());
+			}
+		}
+		return responses;
+	}
+
+	private static String getBoundary(String value) {
+		Matcher matcher = BOUNDARY.matcher(value);
+		return matcher.find() ? matcher.group(1).trim() : null;
+	}
+
+	private static List<String> split(String content, String boundary) {
+		List<String> parts = new ArrayList<String>();
+		String delimiter = "--" + boundary;
+		int index = content.indexOf(delimiter);
+		while (index >= 0) {
+			int start = index + delimiter.length();
+			// closing delimiter
+			if (content.startsWith("--", start)) {
+				break;
+			}
+			int end = content.indexOf(delimiter, start);
+			if (end < 0) {
+				break;
+			}
+			String part = content.substring(start, end);
+			// strip the line break after the delimiter and the one that belongs to the next delimiter
+			if (part.startsWith("\r\n")) {
+				part = part.substring(2);
+			}
+			if (part.endsWith("\r\n")) {
+				part = part.substring(0, part.length() - 2);
+			}
+			parts.add(part);
+			index = end;
+		}
+		return parts;
+	}
+
+	private static HTTPResponse parseResponse(String raw) {
+		int headerEnd = raw.indexOf("\r\n\r\n");
+		String head = headerEnd < 0 ? raw : raw.substring(0, headerEnd);
+		String body = headerEnd < 0 ? "" : raw.substring(headerEnd + 4);
+		String[] lines = head.split("\r\n");
+		Matcher matcher = STATUS.matcher(lines[0].trim());
+		if (!matcher.matches()) {
+			throw new IllegalStateException("Invalid batch response status line: " + lines[0]);
+		}
+		List<Header> headers = new ArrayList<Header>();
+		for (int i = 1; i < lines.length; i++) {
+			int index = lines[i].indexOf(':');
+			if (index > 0) {
+				headers.add(new MimeHeader(lines[i].substring(0, index).trim(), lines[i].substring(index + 1).trim()));
+			}
+		}
+		byte[] content = body.getBytes(RAW);
+		ModifiablePart part;
+		if (content.length > 0) {
+			headers.add(new MimeHeader("Content-Length", Integer.toString(content.length)));
+			part = new PlainMimeContentPart(null, IOUtils.wrap(content, true), headers.toArray(new Header[headers.size()]));
+			((PlainMimeContentPart) part).setReopenable(true);
+		}
+		else {
+			headers.add(new MimeHeader("Content-Length", "0"));
+			part = new PlainMimeEmptyPart(null, headers.toArray(new Header[headers.size()]));
+		}
+		return new DefaultHTTPResponse(Integer.parseInt(matcher.group(1)), matcher.group(2), part);
+	}
+}
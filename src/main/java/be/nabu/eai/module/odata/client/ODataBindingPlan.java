@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import be.nabu.eai.repository.api.Repository;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.properties.CollectionNameProperty;
+import be.nabu.libs.types.properties.ForeignKeyProperty;
+import be.nabu.libs.types.properties.ForeignNameProperty;
+
+/**
+ * Describes which fields of a type have to be rewritten to @odata.bind references when it is sent to the server.
+ * This only depends on the type so it is calculated once and then applied to every instance.
+ */
+public class ODataBindingPlan {
+
+	private List<Binding> bindings = new ArrayList<Binding>();
+	// the complex children that might have bindings of their own
+	private List<String> children = new ArrayList<String>();
+
+	public ODataBindingPlan(ComplexType type, Repository repository) {
+		Collection<Element<?>> allChildren = TypeUtils.getAllChildren(type);
+		for (Element<?> child : allChildren) {
+			// we have a binding element
+			if (child.getName().endsWith("@odata.bind")) {
+				// next to the binding string element there should be a complex type that looks like the actual thing
+				// the complex type should be used to create a new entry, the bind should be used to bind an existing entity
+				String complexName = child.getName().substring(0, child.getName().length() - "@odata.bind".length());
+				Element<?> complexBind = type.get(complexName);
+				if (complexBind != null) {
+					// get the entity-set specific collection name
+					String collectionName = ValueUtils.getValue(CollectionNameProperty.getInstance(), complexBind.getProperties());
+					// if null, we assume there is only one collection for that type, it should be annotated at the global type
+					if (collectionName == null && complexBind.getType() instanceof DefinedType) {
+						ComplexType globalType = (ComplexType) repository.resolve(((DefinedType) complexBind.getType()).getId());
+						if (globalType != null) {
+							collectionName = ValueUtils.getValue(CollectionNameProperty.getInstance(), globalType.getProperties());
+						}
+					}
+					if (collectionName != null) {
+						List<Element<?>> linked = new ArrayList<Element<?>>();
+						for (Element<?> potential : allChildren) {
+							String foreignName = ValueUtils.getValue(ForeignNameProperty.getInstance(), potential.getProperties());
+							// linked to this type
+							if (foreignName != null && foreignName.equals(complexName)) {
+								linked.add(potential);
+							}
+						}
+						if (linked.size() == 1) {
+							Binding binding = new Binding(child.getName(), collectionName, false);
+							binding.getFields().add(linked.get(0).getName());
+							binding.getKeys().add(null);
+							bindings.add(binding);
+						}
+						else if (linked.size() > 1) {
+							Binding binding = new Binding(child.getName(), collectionName, true);
+							for (Element<?> bindValue : linked) {
+								String foreignKey = ValueUtils.getValue(ForeignKeyProperty.getInstance(), bindValue.getProperties());
+								if (foreignKey != null) {
+									binding.getFields().add(bindValue.getName());
+									binding.getKeys().add(foreignKey.split(":")[1]);
+								}
+							}
+							if (!binding.getFields().isEmpty()) {
+								bindings.add(binding);
+							}
+						}
+					}
+				}
+			}
+			else if (child.getType() instanceof ComplexType) {
+				children.add(child.getName());
+			}
+		}
+	}
+
+	public List<Binding> getBindings() {
+		return bindings;
+	}
+
+	public List<String> getChildren() {
+		return children;
+	}
+
+	public static class Binding {
+		// the name of the bind field, e.g. parentaccountid@odata.bind
+		private String name;
+		// the collection we are pointing to, e.g. accounts
+		private String collectionName;
+		// a composite binding uses named keys: /collection(key1=value1,key2=value2)
+		private boolean composite;
+		// the fields that contain the key values and the name of the key they map to
+		private List<String> fields = new ArrayList<String>(), keys = new ArrayList<String>();
+
+		public Binding(String name, String collectionName, boolean composite) {
+			this.name = name;
+			this.collectionName = collectionName;
+			this.composite = composite;
+		}
+
+		public String getName() {
+			return name;
+		}
+		public String getCollectionName() {
+			return collectionName;
+		}
+		public boolean isComposite() {
+			return composite;
+		}
+		public List<String> getFields() {
+			return fields;
+		}
+		public List<String> getKeys() {
+			return keys;
+		}
+	}
+}
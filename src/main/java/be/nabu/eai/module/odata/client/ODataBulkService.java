@@ -0,0 +1,147 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Sends a list of inputs for a write function (POST, PUT, PATCH) in $batch changesets
+ */
+public class ODataBulkService implements DefinedService {
+
+	private Function function;
+	private String id;
+	private ODataClient client;
+	private Structure input, output;
+
+	public ODataBulkService(String id, ODataClient client, Function function) {
+		this.id = id;
+		this.client = client;
+		this.function = function;
+	}
+
+	@Override
+	public ServiceInterface getServiceInterface() {
+		return new ServiceInterface() {
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				if (output == null) {
+					synchronized(ODataBulkService.this) {
+						if (output == null) {
+							Structure result = new Structure();
+							result.setName("result");
+							result.add(new SimpleElementImpl<Integer>("index", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), result));
+							result.add(new SimpleElementImpl<Integer>("code", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), result,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							result.add(new SimpleElementImpl<String>("message", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), result,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							result.add(new ComplexElementImpl("output", function.getOutput(), result,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							Structure output = new Structure();
+							output.setName("output");
+							output.add(new ComplexElementImpl("results", result, output,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+								new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+							ODataBulkService.this.output = output;
+						}
+					}
+				}
+				return output;
+			}
+			@Override
+			public ComplexType getInputDefinition() {
+				if (input == null) {
+					synchronized(ODataBulkService.this) {
+						if (input == null) {
+							Structure input = new Structure();
+							input.setName("input");
+							input.add(new SimpleElementImpl<String>("transactionId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							input.add(new ComplexElementImpl("records", function.getInput(), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+								new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+							input.add(new SimpleElementImpl<Integer>("chunkSize", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							input.add(new SimpleElementImpl<Integer>("parallelism", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							List<String> pathParameters = client.getPathParameters();
+							if (pathParameters != null && !pathParameters.isEmpty()) {
+								Structure path = new Structure();
+								path.setName("path");
+								for (String parameter : pathParameters) {
+									path.add(new SimpleElementImpl<String>(parameter, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), path));
+								}
+								input.add(new ComplexElementImpl("path", path, input));
+							}
+							ODataBulkService.this.input = input;
+						}
+					}
+				}
+				return input;
+			}
+		};
+	}
+
+	@Override
+	public ServiceInstance newInstance() {
+		return new ServiceInstance() {
+			@Override
+			public Service getDefinition() {
+				return ODataBulkService.this;
+			}
+			@Override
+			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+				return new ODataRunner(client, executionContext).runBulk(function, input, getServiceInterface().getOutputDefinition());
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getReferences() {
+		return new HashSet<String>();
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+}
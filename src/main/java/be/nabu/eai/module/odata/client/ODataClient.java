@@ -17,19 +17,45 @@
 
 package be.nabu.eai.module.odata.client;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import be.nabu.eai.module.odata.client.api.ODataRequestRewriter;
+import be.nabu.eai.module.odata.client.api.ODataWriteBehindFailureHandler;
 import be.nabu.eai.repository.EAIResourceRepository;
 import be.nabu.eai.repository.api.Repository;
 import be.nabu.eai.repository.artifacts.jaxb.JAXBArtifact;
 import be.nabu.eai.repository.util.SystemPrincipal;
+import be.nabu.libs.artifacts.api.StoppableArtifact;
 import be.nabu.libs.http.HTTPException;
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
@@ -38,6 +64,9 @@ import be.nabu.libs.http.core.DefaultHTTPRequest;
 import be.nabu.libs.http.core.HTTPRequestAuthenticatorFactory;
 import be.nabu.libs.odata.ODataDefinition;
 import be.nabu.libs.odata.parser.ODataParser;
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.odata.types.NavigationProperty;
+import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.resources.api.ManageableContainer;
 import be.nabu.libs.resources.api.ReadableResource;
@@ -47,6 +76,13 @@ import be.nabu.libs.resources.api.WritableResource;
 import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.api.DefinedService;
 import be.nabu.libs.services.pojo.POJOUtils;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.PrimaryKeyProperty;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
@@ -56,7 +92,9 @@ import be.nabu.utils.mime.impl.MimeHeader;
 import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
 import nabu.protocols.http.client.Services;
 
-public class ODataClient extends JAXBArtifact<ODataClientConfiguration> {
+public class ODataClient extends JAXBArtifact<ODataClientConfiguration> implements StoppableArtifact {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	private ODataDefinition definition;
 	
@@ -65,7 +103,334 @@ public class ODataClient extends JAXBArtifact<ODataClientConfiguration> {
 	}
 
 	private ODataRequestRewriter rewriter;
-	private boolean rewriterResolved;
+	private ODataWriteBehindFailureHandler writeBehindFailureHandler;
+	private boolean rewriterResolved, writeBehindFailureHandlerResolved;
+	private volatile ExecutorService executor;
+	private Semaphore requestPermits;
+	private Map<String, ODataKeyCache> keyCaches;
+	private ConcurrentMap<String, CompletableFuture<ComplexContent>> inflightReads = new ConcurrentHashMap<String, CompletableFuture<ComplexContent>>();
+	
+	private Map<String, ODataKeyBatch> keyBatches = new HashMap<String, ODataKeyBatch>();
+	// guarded by the key batches
+	private Map<String, Integer> activeKeyLookups = new HashMap<String, Integer>();
+	private volatile Map<String, List<NavigationProperty>> navigationProperties;
+	private ConcurrentMap<String, ODataBindingPlan> bindingPlans = new ConcurrentHashMap<String, ODataBindingPlan>();
+	private ConcurrentMap<String, ODataFilterTemplate> filterTemplates = new ConcurrentHashMap<String, ODataFilterTemplate>();
+	// path parameters like {tenant} in the endpoint
+	private static final Pattern PATH_PARAMETER = Pattern.compile("\\{[^}]+\\}");
+	private volatile List<String> pathParameters, basePathSegments;
+	private ConcurrentMap<String, ODataUrlTemplate> urlTemplates = new ConcurrentHashMap<String, ODataUrlTemplate>();
+	private volatile Set<String> streamEntitySets;
+	private Map<String, ODataReplica> replicas;
+	private volatile ScheduledExecutorService scheduler;
+	private volatile ODataWriteBehind writeBehind;
+	
+	/**
+	 * Returns the local replica of the entity set if one is configured. The first call starts the replication in the background, until the initial load is done the replica is not usable.
+	 */
+	public ODataReplica getReplica(String entitySet) {
+		if (replicas == null) {
+			synchronized(this) {
+				if (replicas == null) {
+					Map<String, ODataReplica> replicas = new HashMap<String, ODataReplica>();
+					ODataDefinition definition = getDefinition();
+					if (definition != null && getConfig().getReplicas() != null) {
+						for (ODataReplicaConfiguration configuration : getConfig().getReplicas()) {
+							if (configuration == null || configuration.getEntitySet() == null) {
+								continue;
+							}
+							Function list = getListFunction(definition, configuration.getEntitySet());
+							ComplexType entityType = list == null ? null : getListType(list);
+							if (entityType == null) {
+								logger.warn("Can not replicate entity set '" + configuration.getEntitySet() + "' for " + getId() + ", no list function found");
+								continue;
+							}
+							List<String> fields = new ArrayList<String>();
+							for (Element<?> element : TypeUtils.getAllChildren(entityType)) {
+								Boolean primaryKey = ValueUtils.getValue(PrimaryKeyProperty.getInstance(), element.getProperties());
+								if (primaryKey != null && primaryKey) {
+									fields.add(element.getName());
+								}
+							}
+							if (configuration.getIndexes() != null) {
+								for (String index : configuration.getIndexes()) {
+									if (index != null && !fields.contains(index)) {
+										fields.add(index);
+									}
+								}
+							}
+							final ODataReplica replica = new ODataReplica(entityType, fields);
+							final Function function = list;
+							final String name = configuration.getEntitySet();
+							replicas.put(name, replica);
+							getScheduler().scheduleWithFixedDelay(new Runnable() {
+								@Override
+								public void run() {
+									try {
+										new ODataRunner(ODataClient.this, getRepository().newExecutionContext(SystemPrincipal.ROOT)).readAll(function, replica.newLoader());
+									}
+									catch (Exception e) {
+										logger.error("Could not refresh replica of '" + name + "' for " + getId(), e);
+									}
+								}
+							}, 0, configuration.getRefreshInterval() == null ? 300000 : configuration.getRefreshInterval(), TimeUnit.MILLISECONDS);
+						}
+					}
+					this.replicas = replicas;
+				}
+			}
+		}
+		return entitySet == null ? null : replicas.get(entitySet);
+	}
+	
+	private static Function getListFunction(ODataDefinition definition, String entitySet) {
+		if (definition.getFunctions() != null) {
+			for (Function function : definition.getFunctions()) {
+				// lists are the reads that support paging
+				if (entitySet.equals(function.getContext()) && "GET".equalsIgnoreCase(function.getMethod()) && function.getInput().get("limit") != null) {
+					return function;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * The type of the entities in the entity set, null if the entity set can not be listed
+	 */
+	public ComplexType getEntitySetType(String entitySet) {
+		ODataDefinition definition = getDefinition();
+		Function list = definition == null || entitySet == null ? null : getListFunction(definition, entitySet);
+		return list == null ? null : getListType(list);
+	}
+
+	private static ComplexType getListType(Function function) {
+		for (Element<?> element : TypeUtils.getAllChildren(function.getOutput())) {
+			Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+			if (element.getType() instanceof ComplexType && maxOccurs != null && maxOccurs != 1) {
+				return (ComplexType) element.getType();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Background work for this client (replication) runs on a single daemon thread, the write-behind queue has its own.
+	 */
+	public ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			synchronized(this) {
+				if (scheduler == null) {
+					scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "odata-" + getId());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Returns null if write-behind is not enabled.
+	 */
+	public ODataWriteBehind getWriteBehind() {
+		if (writeBehind == null && getConfig().getWriteBehindDelay() != null) {
+			synchronized(this) {
+				if (writeBehind == null) {
+					String spool = getConfig().getWriteBehindSpool();
+					writeBehind = new ODataWriteBehind(this, getConfig().getCharset() == null ? Charset.forName("UTF-8") : getConfig().getCharset(), getConfig().getWriteBehindDelay(), 
+						getConfig().getWriteBehindBatchSize() == null ? 100 : getConfig().getWriteBehindBatchSize(),
+						getConfig().getWriteBehindMaxAttempts() == null ? 10 : getConfig().getWriteBehindMaxAttempts(),
+						spool == null || spool.trim().isEmpty() ? null : new File(spool, getId() + ".spool"));
+				}
+			}
+		}
+		return writeBehind;
+	}
+	
+	@Override
+	public void stop() throws IOException {
+		synchronized(this) {
+			// try to send what is pending, whatever fails remains in the spool (if any)
+			if (writeBehind != null) {
+				try {
+					writeBehind.close();
+				}
+				catch (Exception e) {
+					logger.error("Could not flush the pending updates for " + getId(), e);
+				}
+				writeBehind = null;
+			}
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+			replicas = null;
+		}
+	}
+	
+	/**
+	 * The compiled filters, keyed by their shape
+	 */
+	public ConcurrentMap<String, ODataFilterTemplate> getFilterTemplates() {
+		return filterTemplates;
+	}
+	
+	/**
+	 * The navigation properties of the definition grouped by the qualified name of the type they belong to
+	 */
+	public List<NavigationProperty> getNavigationProperties(String typeId) {
+		Map<String, List<NavigationProperty>> navigationProperties = this.navigationProperties;
+		if (navigationProperties == null) {
+			synchronized(this) {
+				navigationProperties = this.navigationProperties;
+				if (navigationProperties == null) {
+					navigationProperties = new HashMap<String, List<NavigationProperty>>();
+					ODataDefinition definition = getDefinition();
+					if (definition != null && definition.getNavigationProperties() != null) {
+						for (NavigationProperty property : definition.getNavigationProperties()) {
+							List<NavigationProperty> list = navigationProperties.get(property.getQualifiedName());
+							if (list == null) {
+								list = new ArrayList<NavigationProperty>();
+								navigationProperties.put(property.getQualifiedName(), list);
+							}
+							list.add(property);
+						}
+					}
+					this.navigationProperties = navigationProperties;
+				}
+			}
+		}
+		List<NavigationProperty> list = navigationProperties.get(typeId);
+		return list == null ? new ArrayList<NavigationProperty>() : list;
+	}
+	
+	/**
+	 * The foreign key bindings for a type, defined types are only analyzed once
+	 */
+	public ODataBindingPlan getBindingPlan(ComplexType type) {
+		if (!(type instanceof DefinedType)) {
+			return new ODataBindingPlan(type, getRepository());
+		}
+		String typeId = ((DefinedType) type).getId();
+		ODataBindingPlan plan = bindingPlans.get(typeId);
+		if (plan == null) {
+			plan = new ODataBindingPlan(type, getRepository());
+			ODataBindingPlan existing = bindingPlans.putIfAbsent(typeId, plan);
+			if (existing != null) {
+				plan = existing;
+			}
+		}
+		return plan;
+	}
+	
+	/**
+	 * The key lookups that are currently being collected, grouped per entity set and query
+	 */
+	public Map<String, ODataKeyBatch> getKeyBatches() {
+		return keyBatches;
+	}
+	
+	/**
+	 * The amount of key lookups that are currently running per batch group, only access this while holding the lock on the key batches
+	 */
+	public Map<String, Integer> getActiveKeyLookups() {
+		return activeKeyLookups;
+	}
+	
+	/**
+	 * The reads that are currently being executed, used to coalesce identical concurrent reads
+	 */
+	public ConcurrentMap<String, CompletableFuture<ComplexContent>> getInflightReads() {
+		return inflightReads;
+	}
+	
+	/**
+	 * Returns the cache for single entity reads if one is configured for this entity set
+	 */
+	public ODataKeyCache getKeyCache(String entitySet) {
+		return entitySet == null ? null : getKeyCaches().get(entitySet);
+	}
+	
+	public Map<String, ODataKeyCache> getKeyCaches() {
+		if (keyCaches == null) {
+			synchronized(this) {
+				if (keyCaches == null) {
+					Map<String, ODataKeyCache> keyCaches = new HashMap<String, ODataKeyCache>();
+					if (getConfig().getKeyCaches() != null) {
+						for (ODataKeyCacheConfiguration configuration : getConfig().getKeyCaches()) {
+							if (configuration != null && configuration.getEntitySet() != null) {
+								keyCaches.put(configuration.getEntitySet(), new ODataKeyCache(
+									configuration.getMaxEntries() == null ? 1000 : configuration.getMaxEntries(), 
+									configuration.getTimeToLive() == null ? 60000 : configuration.getTimeToLive()));
+							}
+						}
+					}
+					this.keyCaches = keyCaches;
+				}
+			}
+		}
+		return keyCaches;
+	}
+	
+	/**
+	 * Limits the amount of independent requests that are sent in parallel over all the calls of this client
+	 */
+	public Semaphore getRequestPermits() {
+		if (requestPermits == null) {
+			synchronized(this) {
+				if (requestPermits == null) {
+					Integer concurrency = getConfig().getRequestConcurrency();
+					requestPermits = new Semaphore(concurrency == null || concurrency < 1 ? 1 : concurrency);
+				}
+			}
+		}
+		return requestPermits;
+	}
+	
+	/**
+	 * Used to send multiple requests in parallel, the actual parallelism is limited by whoever submits.
+	 * Submitters always do part of the work themselves so queued tasks never block them.
+	 */
+	public ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized(this) {
+				if (executor == null && getConfig().isVirtualThreads()) {
+					// we still compile against older versions of java so we can't reference it directly
+					try {
+						executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+					}
+					catch (Exception e) {
+						// not supported by this runtime, use regular threads
+					}
+				}
+				if (executor == null) {
+					int size = getConfig().getMaxThreads() == null || getConfig().getMaxThreads() < 1 ? 10 : getConfig().getMaxThreads();
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "odata-" + getId());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					// idle threads are released
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+				}
+			}
+		}
+		return executor;
+	}
 	
 	public ODataRequestRewriter getRewriter() {
 		if (!rewriterResolved) {
@@ -82,19 +447,178 @@ public class ODataClient extends JAXBArtifact<ODataClientConfiguration> {
 		return rewriter;
 	}
 	
+	public ODataWriteBehindFailureHandler getWriteBehindFailureHandler() {
+		if (!writeBehindFailureHandlerResolved) {
+			synchronized(this) {
+				if (!writeBehindFailureHandlerResolved) {
+					DefinedService handler = getConfig().getWriteBehindFailureHandler();
+					if (handler != null) {
+						this.writeBehindFailureHandler = POJOUtils.newProxy(ODataWriteBehindFailureHandler.class, handler, getRepository(), SystemPrincipal.ROOT);
+					}
+					writeBehindFailureHandlerResolved = true;
+				}
+			}
+		}
+		return writeBehindFailureHandler;
+	}
+	
 	public List<String> getPathParameters() {
-		List<String> parameters = new ArrayList<String>();
-		String path = getConfig().getEndpoint().getPath();
-		if (path != null) {
-			Pattern pattern = Pattern.compile("\\{[^}]+\\}");
-			java.util.regex.Matcher matcher = pattern.matcher(path);
+		List<String> pathParameters = this.pathParameters;
+		if (pathParameters == null) {
+			List<String> parameters = new ArrayList<String>();
+			String path = getConfig().getEndpoint().getPath();
+			if (path != null) {
+				Matcher matcher = PATH_PARAMETER.matcher(path);
+				while (matcher.find()) {
+					String match = matcher.group();
+					match = match.substring(1, match.length() - 1).trim();
+					parameters.add(match);
+				}
+			}
+			this.pathParameters = pathParameters = parameters;
+		}
+		return pathParameters;
+	}
+	
+	/**
+	 * The base path of the definition split on the path parameters: the even indexes are literal parts, the odd indexes are parameter names.
+	 */
+	public List<String> getBasePathSegments() {
+		List<String> basePathSegments = this.basePathSegments;
+		if (basePathSegments == null) {
+			List<String> segments = new ArrayList<String>();
+			String path = getDefinition().getBasePath();
+			Matcher matcher = PATH_PARAMETER.matcher(path);
+			int last = 0;
 			while (matcher.find()) {
+				segments.add(path.substring(last, matcher.start()));
 				String match = matcher.group();
-				match = match.substring(1, match.length() - 1).trim();
-				parameters.add(match);
+				segments.add(match.substring(1, match.length() - 1).trim());
+				last = matcher.end();
+			}
+			segments.add(path.substring(last));
+			this.basePathSegments = basePathSegments = segments;
+		}
+		return basePathSegments;
+	}
+	
+	public ODataUrlTemplate getUrlTemplate(Function function) {
+		String key = function.getContext() + "." + function.getName() + ":" + function.getMethod();
+		ODataUrlTemplate template = urlTemplates.get(key);
+		if (template == null) {
+			template = new ODataUrlTemplate(function);
+			ODataUrlTemplate existing = urlTemplates.putIfAbsent(key, template);
+			if (existing != null) {
+				template = existing;
+			}
+		}
+		return template;
+	}
+	
+	/**
+	 * The entity sets of which the entities are media entities (HasStream) or have stream properties (Edm.Stream), only those have content that can be downloaded or uploaded.
+	 */
+	public Set<String> getStreamEntitySets() {
+		Set<String> streamEntitySets = this.streamEntitySets;
+		if (streamEntitySets == null) {
+			synchronized(this) {
+				streamEntitySets = this.streamEntitySets;
+				if (streamEntitySets == null) {
+					try {
+						Resource child = getDirectory().getChild("odata-metadata.xml");
+						if (child == null) {
+							streamEntitySets = new HashSet<String>();
+						}
+						else {
+							try (ReadableContainer<ByteBuffer> readable = ((ReadableResource) child).getReadable()) {
+								streamEntitySets = getStreamEntitySets(IOUtils.toInputStream(readable));
+							}
+						}
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					this.streamEntitySets = streamEntitySets;
+				}
 			}
 		}
-		return parameters;
+		return streamEntitySets;
+	}
+	
+	// the attributes are read straight from the metadata, the parsed definition does not retain them
+	private static Set<String> getStreamEntitySets(InputStream metadata) throws Exception {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		// type -> base type
+		Map<String, String> baseTypes = new HashMap<String, String>();
+		Set<String> streamTypes = new HashSet<String>();
+		// alias -> namespace
+		Map<String, String> aliases = new HashMap<String, String>();
+		// entity set -> type
+		Map<String, String> entitySets = new HashMap<String, String>();
+		String namespace = null, type = null;
+		XMLStreamReader reader = factory.createXMLStreamReader(metadata);
+		try {
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if ("Schema".equals(name)) {
+						namespace = reader.getAttributeValue(null, "Namespace");
+						String alias = reader.getAttributeValue(null, "Alias");
+						if (alias != null) {
+							aliases.put(alias, namespace);
+						}
+					}
+					else if ("EntityType".equals(name)) {
+						type = namespace + "." + reader.getAttributeValue(null, "Name");
+						if ("true".equalsIgnoreCase(reader.getAttributeValue(null, "HasStream"))) {
+							streamTypes.add(type);
+						}
+						String baseType = reader.getAttributeValue(null, "BaseType");
+						if (baseType != null) {
+							baseTypes.put(type, baseType);
+						}
+					}
+					else if ("Property".equals(name) && type != null && "Edm.Stream".equals(reader.getAttributeValue(null, "Type"))) {
+						streamTypes.add(type);
+					}
+					else if ("EntitySet".equals(name)) {
+						entitySets.put(reader.getAttributeValue(null, "Name"), reader.getAttributeValue(null, "EntityType"));
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT && "EntityType".equals(reader.getLocalName())) {
+					type = null;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		Set<String> result = new HashSet<String>();
+		for (Map.Entry<String, String> entitySet : entitySets.entrySet()) {
+			String current = resolveAlias(entitySet.getValue(), aliases);
+			// streams are inherited, the depth guards against cycles in broken metadata
+			for (int depth = 0; current != null && depth < 100; depth++) {
+				if (streamTypes.contains(current)) {
+					result.add(entitySet.getKey());
+					break;
+				}
+				current = resolveAlias(baseTypes.get(current), aliases);
+			}
+		}
+		return result;
+	}
+	
+	private static String resolveAlias(String type, Map<String, String> aliases) {
+		if (type != null) {
+			int index = type.lastIndexOf('.');
+			if (index > 0 && aliases.containsKey(type.substring(0, index))) {
+				return aliases.get(type.substring(0, index)) + type.substring(index);
+			}
+		}
+		return type;
 	}
 	
 	public ODataDefinition getDefinition() {
@@ -154,8 +678,19 @@ public class ODataClient extends JAXBArtifact<ODataClientConfiguration> {
 		}
 	}
 	
+	/**
+	 * Drops the parsed definition (e.g. after the endpoint or the metadata has changed) and everything that was derived from it, it is rebuilt on the next use.
+	 */
 	public void refreshMetadata() {
-		
+		synchronized(this) {
+			definition = null;
+			navigationProperties = null;
+			pathParameters = null;
+			basePathSegments = null;
+			urlTemplates.clear();
+			bindingPlans.clear();
+			streamEntitySets = null;
+		}
 	}
 	
 	public InputStream getMetadata(ODataClient client, URI url, boolean authenticate) {
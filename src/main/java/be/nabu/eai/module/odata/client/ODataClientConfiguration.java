@@ -44,18 +44,30 @@ public class ODataClientConfiguration {
 	// the entitySets to expose!
 	private List<String> entitySets = new ArrayList<String>();
 	private List<ODataEntityConfiguration> expansions = new ArrayList<ODataEntityConfiguration>();
+	private List<ODataKeyCacheConfiguration> keyCaches = new ArrayList<ODataKeyCacheConfiguration>();
+	private List<ODataReplicaConfiguration> replicas = new ArrayList<ODataReplicaConfiguration>();
 	
 	// the type of the security needed (depends on whats available)
 	private String securityType;
 	// the security context within that type
 	private String securityContext;
 	
-	private DefinedService requestRewriter;
+	private DefinedService requestRewriter, writeBehindFailureHandler;
 	
 	// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
 	// some providers (e.g. sharepoint) expect segments. others (e.g. business central) do not
 	private boolean keyAsSegment;
 	private boolean ignoreEtag;
+	private boolean deepInsert, coalesceReads, virtualThreads, useQueryEndpoint, useParameterAliases, propagateTrace, bufferTransactionalWrites, diffPatches, streaming, ieee754Compatible;
+	
+	private Integer maxThrottleRetries, bulkChunkSize, bulkParallelism, keyBatchSize, requestConcurrency, maxUrlLength, maxThreads;
+	private Long keyBatchWindow, slowRequestThreshold, writeBehindDelay;
+	private Integer writeBehindBatchSize, writeBehindMaxAttempts;
+	private String writeBehindSpool;
+	private Double slowRequestSampleRate;
+	private ODataPreferReturn preferReturn;
+	private ODataMetadataLevel metadataLevel;
+	private Integer maxPageSize;
 	
 	@Field(comment = "You can opt for using a specific http client, for example if you are working with self-signed certificates for internal infrastructure. If left empty, the default http client will be used.")
 	@Advanced
@@ -115,6 +127,20 @@ public class ODataClientConfiguration {
 		this.expansions = expansions;
 	}
 	
+	public List<ODataKeyCacheConfiguration> getKeyCaches() {
+		return keyCaches;
+	}
+	public void setKeyCaches(List<ODataKeyCacheConfiguration> keyCaches) {
+		this.keyCaches = keyCaches;
+	}
+	
+	public List<ODataReplicaConfiguration> getReplicas() {
+		return replicas;
+	}
+	public void setReplicas(List<ODataReplicaConfiguration> replicas) {
+		this.replicas = replicas;
+	}
+	
 	@Advanced
 	@Field(comment = "By default we will send a If-Match: * header but some systems (like ms graph) don't like this. They do allow sending no header at all. If you enable this, we will not send a header unless it is explicitly known.")
 	public boolean isIgnoreEtag() {
@@ -141,5 +167,258 @@ public class ODataClientConfiguration {
 		this.usePostForRelations = usePostForRelations;
 	}
 	
+	@Advanced
+	@Field(comment = "Whether the server should send back the entity after a create or update. By default the server decides. With minimal, the id of created entities is taken from the OData-EntityId header.")
+	public ODataPreferReturn getPreferReturn() {
+		return preferReturn;
+	}
+	public void setPreferReturn(ODataPreferReturn preferReturn) {
+		this.preferReturn = preferReturn;
+	}
+	
+	@Advanced
+	@Field(comment = "The page size we ask the server to use for lists (odata.maxpagesize). By default the server decides.")
+	public Integer getMaxPageSize() {
+		return maxPageSize;
+	}
+	public void setMaxPageSize(Integer maxPageSize) {
+		this.maxPageSize = maxPageSize;
+	}
+	
+	@Advanced
+	@Field(comment = "When creating an entity, related entities that are filled in are sent inline in the same POST (deep insert). The created entity is requested back so the generated ids can be mapped to the output.")
+	public boolean isDeepInsert() {
+		return deepInsert;
+	}
+	public void setDeepInsert(boolean deepInsert) {
+		this.deepInsert = deepInsert;
+	}
+	
+	@Advanced
+	@Field(comment = "When multiple identical reads (same function, url and security) are executed at the same time, they can share a single call to the server. Note that they will also share the parsed result.")
+	public boolean isCoalesceReads() {
+		return coalesceReads;
+	}
+	public void setCoalesceReads(boolean coalesceReads) {
+		this.coalesceReads = coalesceReads;
+	}
+	
+	@Advanced
+	@Field(comment = "If set, reads by key that arrive within this window (in milliseconds) for the same entity set are combined into a single query with an 'in' filter.")
+	public Long getKeyBatchWindow() {
+		return keyBatchWindow;
+	}
+	public void setKeyBatchWindow(Long keyBatchWindow) {
+		this.keyBatchWindow = keyBatchWindow;
+	}
+	
+	@Advanced
+	@Field(comment = "The maximum amount of keys that are combined in a single query, defaults to 50.")
+	public Integer getKeyBatchSize() {
+		return keyBatchSize;
+	}
+	public void setKeyBatchSize(Integer keyBatchSize) {
+		this.keyBatchSize = keyBatchSize;
+	}
+	
+	@Advanced
+	@Field(comment = "When the server is throttling (429 or 503), we can wait for the requested Retry-After and try again. This sets how many times we retry before giving up.")
+	public Integer getMaxThrottleRetries() {
+		return maxThrottleRetries;
+	}
+	public void setMaxThrottleRetries(Integer maxThrottleRetries) {
+		this.maxThrottleRetries = maxThrottleRetries;
+	}
+	
+	@Advanced
+	@Field(comment = "The amount of records that are sent in a single $batch changeset by the bulk services, defaults to 100.")
+	public Integer getBulkChunkSize() {
+		return bulkChunkSize;
+	}
+	public void setBulkChunkSize(Integer bulkChunkSize) {
+		this.bulkChunkSize = bulkChunkSize;
+	}
+	
+	@Advanced
+	@Field(comment = "The amount of changesets the bulk services send in parallel, defaults to 1.")
+	public Integer getBulkParallelism() {
+		return bulkParallelism;
+	}
+	public void setBulkParallelism(Integer bulkParallelism) {
+		this.bulkParallelism = bulkParallelism;
+	}
+	
+	@Advanced
+	@Field(comment = "Independent requests (e.g. association changes) that are not part of a transaction can be sent in parallel. This sets how many of them can be in flight at the same time for this client, defaults to 1.")
+	public Integer getRequestConcurrency() {
+		return requestConcurrency;
+	}
+	public void setRequestConcurrency(Integer requestConcurrency) {
+		this.requestConcurrency = requestConcurrency;
+	}
+	
+	@Advanced
+	@Field(comment = "Parallel and asynchronous calls are executed on virtual threads if the java runtime supports them (21+), otherwise a regular thread pool is used.")
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+	
+	@Advanced
+	@Field(comment = "The maximum length of the url of a list query, defaults to 8192. Longer queries with large 'in' filters are split over multiple requests and the results are merged.")
+	public Integer getMaxUrlLength() {
+		return maxUrlLength;
+	}
+	public void setMaxUrlLength(Integer maxUrlLength) {
+		this.maxUrlLength = maxUrlLength;
+	}
+	
+	@Advanced
+	@Field(comment = "If the server supports it, list queries that exceed the maximum url length are sent in the body of a POST to /{EntitySet}/$query instead of being split.")
+	public boolean isUseQueryEndpoint() {
+		return useQueryEndpoint;
+	}
+	public void setUseQueryEndpoint(boolean useQueryEndpoint) {
+		this.useQueryEndpoint = useQueryEndpoint;
+	}
+	
+	@Advanced
+	@Field(comment = "Values of structured filters are sent as parameter aliases (e.g. $filter=name eq @p1&@p1='test'), lists of values are always sent inline.")
+	public boolean isUseParameterAliases() {
+		return useParameterAliases;
+	}
+	public void setUseParameterAliases(boolean useParameterAliases) {
+		this.useParameterAliases = useParameterAliases;
+	}
+	
+	@Advanced
+	@Field(comment = "Send a W3C traceparent header with every request so the calls can be correlated with the logs of the server.")
+	public boolean isPropagateTrace() {
+		return propagateTrace;
+	}
+	public void setPropagateTrace(boolean propagateTrace) {
+		this.propagateTrace = propagateTrace;
+	}
+	
+	@Advanced
+	@Field(comment = "Requests that take longer than this (in milliseconds) are logged with a breakdown of where the time went.")
+	public Long getSlowRequestThreshold() {
+		return slowRequestThreshold;
+	}
+	public void setSlowRequestThreshold(Long slowRequestThreshold) {
+		this.slowRequestThreshold = slowRequestThreshold;
+	}
+	
+	@Advanced
+	@Field(comment = "The fraction (between 0 and 1) of slow requests that is actually logged, defaults to 1.")
+	public Double getSlowRequestSampleRate() {
+		return slowRequestSampleRate;
+	}
+	public void setSlowRequestSampleRate(Double slowRequestSampleRate) {
+		this.slowRequestSampleRate = slowRequestSampleRate;
+	}
+	
+	@Advanced
+	@Field(comment = "Writes (POST, PUT, PATCH and DELETE) that are done within a transaction are held back and sent as a single $batch changeset when the transaction is committed, on rollback they are discarded. The server applies them all or none. Note that the outputs of buffered writes are empty (e.g. no generated ids) and reads in the same transaction do not see them. Call the flush service before committing to send them while the other resources in the transaction can still be rolled back.")
+	public boolean isBufferTransactionalWrites() {
+		return bufferTransactionalWrites;
+	}
+	public void setBufferTransactionalWrites(boolean bufferTransactionalWrites) {
+		this.bufferTransactionalWrites = bufferTransactionalWrites;
+	}
+	
+	@Advanced
+	@Field(comment = "If set, PATCH calls outside of a transaction are queued and sent in a $batch after this delay (in milliseconds). Successive updates of the same entity are merged into one. The call returns immediately with an empty output.")
+	public Long getWriteBehindDelay() {
+		return writeBehindDelay;
+	}
+	public void setWriteBehindDelay(Long writeBehindDelay) {
+		this.writeBehindDelay = writeBehindDelay;
+	}
+	
+	@Advanced
+	@Field(comment = "The queued updates are sent as soon as this many entities are pending, defaults to 100.")
+	public Integer getWriteBehindBatchSize() {
+		return writeBehindBatchSize;
+	}
+	public void setWriteBehindBatchSize(Integer writeBehindBatchSize) {
+		this.writeBehindBatchSize = writeBehindBatchSize;
+	}
+	
+	@Advanced
+	@Field(comment = "A local folder where the queued updates are journaled (and forced to disk) before the call returns so they survive a restart. If left empty, the queue only exists in memory.")
+	public String getWriteBehindSpool() {
+		return writeBehindSpool;
+	}
+	public void setWriteBehindSpool(String writeBehindSpool) {
+		this.writeBehindSpool = writeBehindSpool;
+	}
+	
+	@Advanced
+	@Field(comment = "Before a PATCH is sent, it is compared with the current version of the entity (from the key cache or fetched from the server) and only the changed fields are sent. If nothing changed, nothing is sent. Writes that are buffered or queued are not compared. Note that if the entity is not in the key cache (with an etag), every PATCH costs an additional GET.")
+	public boolean isDiffPatches() {
+		return diffPatches;
+	}
+	public void setDiffPatches(boolean diffPatches) {
+		this.diffPatches = diffPatches;
+	}
+	
+	@Advanced
+	@Field(comment = "The amount of annotations (e.g. @odata.etag, @odata.type) the server adds to the entities in the response. Less annotations means smaller responses. By default the server decides, which is usually minimal. Lists of keys and the loading of replicas always use none.")
+	public ODataMetadataLevel getMetadataLevel() {
+		return metadataLevel;
+	}
+	public void setMetadataLevel(ODataMetadataLevel metadataLevel) {
+		this.metadataLevel = metadataLevel;
+	}
+	
+	@Advanced
+	@Field(comment = "Ask the server to send the control information (next link, count) before the values (odata.streaming=true).")
+	public boolean isStreaming() {
+		return streaming;
+	}
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	@Advanced
+	@Field(comment = "Ask the server to send large numbers (Edm.Int64, Edm.Decimal) as strings so they don't lose precision (IEEE754Compatible=true).")
+	public boolean isIeee754Compatible() {
+		return ieee754Compatible;
+	}
+	public void setIeee754Compatible(boolean ieee754Compatible) {
+		this.ieee754Compatible = ieee754Compatible;
+	}
+	
+	@Advanced
+	@Field(comment = "Called for every queued update that the server rejects (e.g. 400, 404 or 412) or that still fails after the maximum amount of attempts. Such updates are not retried. The code is 0 if there was no response. If a spool folder is configured they are also written to a dead letter file next to the spool.")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	@InterfaceFilter(implement = "be.nabu.eai.module.odata.client.api.ODataWriteBehindFailureHandler.failed")
+	public DefinedService getWriteBehindFailureHandler() {
+		return writeBehindFailureHandler;
+	}
+	public void setWriteBehindFailureHandler(DefinedService writeBehindFailureHandler) {
+		this.writeBehindFailureHandler = writeBehindFailureHandler;
+	}
+	
+	@Advanced
+	@Field(comment = "The maximum amount of threads this client uses to send requests in parallel, defaults to 10. Not used when running on virtual threads.")
+	public Integer getMaxThreads() {
+		return maxThreads;
+	}
+	public void setMaxThreads(Integer maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+	
+	@Advanced
+	@Field(comment = "How many times a queued update is sent when the server is unavailable or throttling before it is given up on and passed to the failure handler, defaults to 10.")
+	public Integer getWriteBehindMaxAttempts() {
+		return writeBehindMaxAttempts;
+	}
+	public void setWriteBehindMaxAttempts(Integer writeBehindMaxAttempts) {
+		this.writeBehindMaxAttempts = writeBehindMaxAttempts;
+	}
 	
 }
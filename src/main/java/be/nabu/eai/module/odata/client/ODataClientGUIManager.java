@@ -107,7 +107,7 @@ public class ODataClientGUIManager extends BaseJAXBGUIManager<ODataClientConfigu
 
 	@Override
 	protected List<String> getBlacklistedProperties() {
-		return Arrays.asList("entitySets", "expansions");
+		return Arrays.asList("entitySets", "expansions", "keyCaches", "replicas");
 	}
 
 	@Override
@@ -149,6 +149,16 @@ public class ODataClientGUIManager extends BaseJAXBGUIManager<ODataClientConfigu
 				// allow expansions
 				TitledPane expansions = new TitledPane("Expansions", drawExpansions);
 				accordion.getPanes().add(1, expansions);
+				
+				VBox drawKeyCaches = drawKeyCaches(instance);
+				// allow caching of single entity reads
+				TitledPane keyCaches = new TitledPane("Key Caches", drawKeyCaches);
+				accordion.getPanes().add(2, keyCaches);
+				
+				VBox drawReplicas = drawReplicas(instance);
+				// allow local copies of reference data
+				TitledPane replicas = new TitledPane("Replicas", drawReplicas);
+				accordion.getPanes().add(3, replicas);
 			}
 			catch (Exception e) {
 				MainController.getInstance().notify(e);
@@ -193,6 +203,7 @@ public class ODataClientGUIManager extends BaseJAXBGUIManager<ODataClientConfigu
 									writable.close();
 								}
 							}
+							instance.refreshMetadata();
 							MainController.getInstance().setChanged();
 							MainController.getInstance().refresh(instance.getId());
 						}
@@ -240,6 +251,7 @@ public class ODataClientGUIManager extends BaseJAXBGUIManager<ODataClientConfigu
 								// save it, otherwise it is not persisted it seems
 								MainController.getInstance().save(instance.getId());
 							}
+							instance.refreshMetadata();
 							MainController.getInstance().refresh(instance.getId());
 						}
 						catch (Exception e) {
@@ -302,6 +314,50 @@ public class ODataClientGUIManager extends BaseJAXBGUIManager<ODataClientConfigu
 		return box;
 	}
 	
+	@XmlRootElement(name = "keyCaches")
+	public static class KeyCacheEditor {
+		private ODataClient instance;
+
+		public KeyCacheEditor(ODataClient instance) {
+			this.instance = instance;
+		}
+		public List<ODataKeyCacheConfiguration> getKeyCaches() {
+			return instance.getConfig().getKeyCaches();
+		}
+		public void setKeyCaches(List<ODataKeyCacheConfiguration> keyCaches) {
+			instance.getConfig().setKeyCaches(keyCaches);
+		}
+	}
+	private VBox drawKeyCaches(ODataClient instance) {
+		KeyCacheEditor keyCacheEditor = new KeyCacheEditor(instance);
+		ComplexContentEditor complexContentEditor = new ComplexContentEditor(new BeanInstance<KeyCacheEditor>(keyCacheEditor), true, getRepository(instance));
+		VBox box = new VBox();
+		box.getChildren().add(complexContentEditor.getTree());
+		return box;
+	}
+	
+	@XmlRootElement(name = "replicas")
+	public static class ReplicaEditor {
+		private ODataClient instance;
+
+		public ReplicaEditor(ODataClient instance) {
+			this.instance = instance;
+		}
+		public List<ODataReplicaConfiguration> getReplicas() {
+			return instance.getConfig().getReplicas();
+		}
+		public void setReplicas(List<ODataReplicaConfiguration> replicas) {
+			instance.getConfig().setReplicas(replicas);
+		}
+	}
+	private VBox drawReplicas(ODataClient instance) {
+		ReplicaEditor replicaEditor = new ReplicaEditor(instance);
+		ComplexContentEditor complexContentEditor = new ComplexContentEditor(new BeanInstance<ReplicaEditor>(replicaEditor), true, getRepository(instance));
+		VBox box = new VBox();
+		box.getChildren().add(complexContentEditor.getTree());
+		return box;
+	}
+	
 	private VBox drawEntitySets(ODataClient instance) {
 		VBox entitySets = new VBox();
 		TextField filter = new TextField();
@@ -64,6 +64,10 @@ public class ODataClientManager extends JAXBArtifactManager<ODataClientConfigura
 			logger.warn("Could not get definition for artifact: " + artifact.getId());
 			return entries;
 		}
+		// buffered writes can be sent before the transaction is committed
+		if (artifact.getConfig().isBufferTransactionalWrites()) {
+			addChild(root, artifact, entries, new ODataFlushService(root.getId() + ".services.flush", artifact));
+		}
 		if (entitySets != null || showAll) {
 			List<Function> functions = definition.getFunctions();
 			if (functions != null) {
@@ -77,6 +81,24 @@ public class ODataClientManager extends JAXBArtifactManager<ODataClientConfigura
 							if (!showAll) {
 								usedTypes.addAll(getUsedTypes(child));
 							}
+							// write operations can also be done in bulk
+							if ("POST".equalsIgnoreCase(function.getMethod()) || "PUT".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod())) {
+								addChild(root, artifact, entries, new ODataBulkService(root.getId() + ".services." + entitySet + "Bulk", artifact, function));
+							}
+							else if ("GET".equalsIgnoreCase(function.getMethod())) {
+								// reads can be relayed without parsing the response
+								addChild(root, artifact, entries, new ODataRawService(root.getId() + ".services." + entitySet + "Raw", artifact, function, child));
+								// lists can also be counted or checked for existence without fetching the records
+								if (function.getInput().get("limit") != null) {
+									addChild(root, artifact, entries, new ODataCountService(root.getId() + ".services." + entitySet + "Count", artifact, function, false));
+									addChild(root, artifact, entries, new ODataCountService(root.getId() + ".services." + entitySet + "Exists", artifact, function, true));
+								}
+								// reads by key can also stream the media content of the entity or one of its stream properties, if it has any
+								else if (!artifact.getUrlTemplate(function).getKeys().isEmpty() && artifact.getStreamEntitySets().contains(function.getContext())) {
+									addChild(root, artifact, entries, new ODataStreamService(root.getId() + ".services." + entitySet + "Download", artifact, function, false));
+									addChild(root, artifact, entries, new ODataStreamService(root.getId() + ".services." + entitySet + "Upload", artifact, function, true));
+								}
+							}
 						}
 					}
 				}
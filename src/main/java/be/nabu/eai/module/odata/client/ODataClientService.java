@@ -37,12 +37,15 @@ import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceInstance;
 import be.nabu.libs.services.api.ServiceInterface;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
 import be.nabu.libs.types.base.ComplexElementImpl;
 import be.nabu.libs.types.base.SimpleElementImpl;
 import be.nabu.libs.types.base.ValueImpl;
 import be.nabu.libs.types.java.BeanResolver;
+import be.nabu.libs.types.properties.CommentProperty;
 import be.nabu.libs.types.properties.MaxOccursProperty;
 import be.nabu.libs.types.properties.MinOccursProperty;
 import be.nabu.libs.types.structure.Structure;
@@ -52,7 +55,7 @@ public class ODataClientService implements DefinedService, ExternalDependencyArt
 	private Function function;
 	private String id;
 	private ODataClient client;
-	private ComplexType input;
+	private ComplexType input, output;
 
 	public ODataClientService(String id, ODataClient client, Function function) {
 		this.id = id;
@@ -69,7 +72,28 @@ public class ODataClientService implements DefinedService, ExternalDependencyArt
 			}
 			@Override
 			public ComplexType getOutputDefinition() {
-				return function.getOutput();
+				if (ODataClientService.this.output == null) {
+					ComplexType output = function.getOutput();
+					// for deep inserts we return the created entity, including the related entities with their generated ids
+					if ("POST".equalsIgnoreCase(function.getMethod()) && client.getConfig().isDeepInsert() && output.get("created") == null) {
+						ComplexType entityType = null;
+						for (Element<?> element : TypeUtils.getAllChildren(function.getInput())) {
+							if (element.getType() instanceof ComplexType) {
+								entityType = (ComplexType) element.getType();
+							}
+						}
+						if (entityType != null) {
+							Structure extended = new Structure();
+							extended.setName("output");
+							extended.setSuperType(output);
+							extended.add(new ComplexElementImpl("created", entityType, extended, 
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							output = extended;
+						}
+					}
+					ODataClientService.this.output = output;
+				}
+				return ODataClientService.this.output;
 			}
 			
 			@Override
@@ -102,6 +126,43 @@ public class ODataClientService implements DefinedService, ExternalDependencyArt
 						}
 						extended.add(new ComplexElementImpl("path", path, extended));
 					}
+					// reads can choose which relations to expand
+					if ("GET".equalsIgnoreCase(function.getMethod())) {
+						if (extended == null) {
+							extended = new Structure();
+							extended.setName("input");
+							extended.setSuperType(input);
+						}
+						input = extended;
+						extended.add(new ComplexElementImpl("expand", (ComplexType) BeanResolver.getInstance().resolve(ODataExpand.class), extended, 
+							new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+							new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0),
+							new ValueImpl<String>(CommentProperty.getInstance(), "If set, only these relations are expanded instead of the configured ones")));
+						extended.add(new SimpleElementImpl<String>("metadata", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), extended, 
+							new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+							new ValueImpl<String>(CommentProperty.getInstance(), "The amount of annotations in the response: 'none', 'minimal' or 'full'")));
+					}
+					boolean write = "POST".equalsIgnoreCase(function.getMethod()) || "PUT".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod());
+					// lists are the reads that support paging
+					boolean list = "GET".equalsIgnoreCase(function.getMethod()) && function.getInput().get("limit") != null;
+					// the preferences sent to the server can be overridden per call
+					if (write || list) {
+						if (extended == null) {
+							extended = new Structure();
+							extended.setName("input");
+							extended.setSuperType(input);
+						}
+						input = extended;
+						if (write) {
+							extended.add(new SimpleElementImpl<String>("preferReturn", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), extended, 
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+								new ValueImpl<String>(CommentProperty.getInstance(), "Either 'minimal' or 'representation'")));
+						}
+						else {
+							extended.add(new SimpleElementImpl<Integer>("maxPageSize", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), extended, 
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+						}
+					}
 					ODataClientService.this.input = input;
 				}
 				return ODataClientService.this.input;
@@ -118,7 +179,7 @@ public class ODataClientService implements DefinedService, ExternalDependencyArt
 			}
 			@Override
 			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
-				return new ODataRunner(client).run(function, input);
+				return new ODataRunner(client, executionContext).run(function, input, getServiceInterface().getOutputDefinition());
 			}
 		};
 	}
@@ -0,0 +1,149 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.java.BeanResolver;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Counts the entities that match a filter or checks if there is at least one, without downloading a page of results
+ */
+public class ODataCountService implements DefinedService {
+
+	private Function function;
+	private String id;
+	private ODataClient client;
+	private boolean exists;
+	private Structure input, output;
+
+	public ODataCountService(String id, ODataClient client, Function function, boolean exists) {
+		this.id = id;
+		this.client = client;
+		this.function = function;
+		this.exists = exists;
+	}
+
+	@Override
+	public ServiceInterface getServiceInterface() {
+		return new ServiceInterface() {
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				if (output == null) {
+					synchronized(ODataCountService.this) {
+						if (output == null) {
+							Structure output = new Structure();
+							output.setName("output");
+							if (exists) {
+								output.add(new SimpleElementImpl<Boolean>("exists", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), output));
+							}
+							else {
+								output.add(new SimpleElementImpl<Long>("count", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), output));
+							}
+							ODataCountService.this.output = output;
+						}
+					}
+				}
+				return output;
+			}
+			@Override
+			public ComplexType getInputDefinition() {
+				if (input == null) {
+					synchronized(ODataCountService.this) {
+						if (input == null) {
+							Structure input = new Structure();
+							input.setName("input");
+							input.add(new SimpleElementImpl<String>("transactionId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							if (function.getInput().get("filter") != null) {
+								input.add(new SimpleElementImpl<String>("filter", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+								input.add(new ComplexElementImpl("filters", (ComplexType) BeanResolver.getInstance().resolve(Filter.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+									new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+							}
+							if (function.getInput().get("search") != null) {
+								input.add(new SimpleElementImpl<String>("search", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							}
+							List<String> pathParameters = client.getPathParameters();
+							if (pathParameters != null && !pathParameters.isEmpty()) {
+								Structure path = new Structure();
+								path.setName("path");
+								for (String parameter : pathParameters) {
+									path.add(new SimpleElementImpl<String>(parameter, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), path));
+								}
+								input.add(new ComplexElementImpl("path", path, input));
+							}
+							ODataCountService.this.input = input;
+						}
+					}
+				}
+				return input;
+			}
+		};
+	}
+
+	@Override
+	public ServiceInstance newInstance() {
+		return new ServiceInstance() {
+			@Override
+			public Service getDefinition() {
+				return ODataCountService.this;
+			}
+			@Override
+			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+				return new ODataRunner(client, executionContext).runCount(function, input, getServiceInterface().getOutputDefinition(), exists);
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getReferences() {
+		return new HashSet<String>();
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+}
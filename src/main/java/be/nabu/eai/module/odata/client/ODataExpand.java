@@ -0,0 +1,63 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.List;
+
+import be.nabu.libs.types.api.annotation.Field;
+
+/**
+ * A navigation property to expand for a single call, e.g. contacts($select=fullname,emailaddress1;$filter=statecode eq 0;$top=10)
+ */
+public class ODataExpand {
+	private String name, filter;
+	private List<String> select;
+	private Integer top;
+	
+	@Field(comment = "The name of the navigation property to expand")
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	@Field(comment = "The fields of the related entity you want, by default you get all of them")
+	public List<String> getSelect() {
+		return select;
+	}
+	public void setSelect(List<String> select) {
+		this.select = select;
+	}
+	
+	@Field(comment = "An odata filter on the related entities")
+	public String getFilter() {
+		return filter;
+	}
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+	
+	@Field(comment = "The maximum amount of related entities")
+	public Integer getTop() {
+		return top;
+	}
+	public void setTop(Integer top) {
+		this.top = top;
+	}
+}
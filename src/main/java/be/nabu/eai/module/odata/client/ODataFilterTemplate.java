@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.converter.ConverterFactory;
+
+/**
+ * A compiled $filter for a particular shape of filters (keys, operators, amount of values...).
+ * Calls that only differ in their values share the same template, binding the values is a single pass.
+ */
+public class ODataFilterTemplate {
+
+	// either a literal string or a slot
+	private List<Object> parts = new ArrayList<Object>();
+
+	/**
+	 * The values of one of the filters
+	 */
+	public static class Slot {
+		private int index;
+		private boolean list, like, caseInsensitive;
+
+		public Slot(int index, boolean list, boolean like, boolean caseInsensitive) {
+			this.index = index;
+			this.list = list;
+			this.like = like;
+			this.caseInsensitive = caseInsensitive;
+		}
+	}
+
+	public void addLiteral(String literal) {
+		// merge consecutive literals
+		if (!parts.isEmpty() && parts.get(parts.size() - 1) instanceof String) {
+			parts.set(parts.size() - 1, parts.get(parts.size() - 1) + literal);
+		}
+		else {
+			parts.add(literal);
+		}
+	}
+
+	public void addSlot(Slot slot) {
+		parts.add(slot);
+	}
+
+	/**
+	 * Fills in the values of the filters, which must have the shape the template was compiled for.
+	 * If a map of aliases is passed in, single values are replaced with parameter aliases (@p1, @p2...) and added to the map, lists are always inlined.
+	 */
+	public String bind(List<Filter> filters, Map<String, String> aliases) {
+		StringBuilder builder = new StringBuilder();
+		for (Object part : parts) {
+			if (part instanceof String) {
+				builder.append((String) part);
+				continue;
+			}
+			Slot slot = (Slot) part;
+			List<?> values = filters.get(slot.index).getValues();
+			if (!slot.list) {
+				Object object = values.get(0);
+				// for the like operator, we have probably injected "%" to indicate wildcards, remove those, there are no wildcards here
+				if (slot.like) {
+					object = object.toString().replace("%", "");
+				}
+				String literal = slot.caseInsensitive ? "'" + object + "'" : format(object);
+				if (aliases != null) {
+					String alias = "@p" + (aliases.size() + 1);
+					aliases.put(alias, literal);
+					literal = alias;
+				}
+				builder.append(slot.caseInsensitive ? " tolower(" + literal + ")" : " " + literal);
+			}
+			else {
+				builder.append(" (");
+				boolean first = true;
+				for (Object single : values) {
+					if (first) {
+						first = false;
+					}
+					else {
+						builder.append(",");
+					}
+					if (slot.caseInsensitive) {
+						builder.append("tolower('").append(single).append("')");
+					}
+					else {
+						builder.append(single instanceof Date ? " " : "").append(format(single));
+					}
+				}
+				builder.append(")");
+			}
+		}
+		return builder.toString();
+	}
+
+	static String format(Object object) {
+		if (object instanceof Date) {
+			// we want classic dateTime formatting of the date, not the default java stringification
+			// timezone is mandatory!
+			return ConverterFactory.getInstance().getConverter().convert(object, String.class) + "Z";
+		}
+		return object instanceof String ? "'" + object + "'" : String.valueOf(object);
+	}
+}
@@ -0,0 +1,111 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.client;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Sends the writes that are buffered in a transaction before it is committed.
+ * If the server rejects them, the service fails while the other resources in the transaction (e.g. a database) can still be rolled back.
+ */
+public class ODataFlushService implements DefinedService {
+
+	private String id;
+	private ODataClient client;
+	private Structure input, output;
+
+	public ODataFlushService(String id, ODataClient client) {
+		this.id = id;
+		this.client = client;
+	}
+
+	@Override
+	public ServiceInterface getServiceInterface() {
+		return new ServiceInterface() {
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				if (output == null) {
+					synchronized(ODataFlushService.this) {
+						if (output == null) {
+							Structure output = new Structure();
+							output.setName("output");
+							ODataFlushService.this.output = output;
+						}
+					}
+				}
+				return output;
+			}
+			@Override
+			public ComplexType getInputDefinition() {
+				if (input == null) {
+					synchronized(ODataFlushService.this) {
+						if (input == null) {
+							Structure input = new Structure();
+							input.setName("input");
+							input.add(new SimpleElementImpl<String>("transactionId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input));
+							ODataFlushService.this.input = input;
+						}
+					}
+				}
+				return input;
+			}
+		};
+	}
+
+	@Override
+	public ServiceInstance newInstance() {
+		return new ServiceInstance() {
+			@Override
+			public Service getDefinition() {
+				return ODataFlushService.this;
+			}
+			@Override
+			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+				new ODataRunner(client, executionContext).prepare(input == null ? null : (String) input.get("transactionId"));
+				return getServiceInterface().getOutputDefinition().newInstance();
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getReferences() {
+		return new HashSet<String>();
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal handling of the first level of a json object, the values are kept as raw json.
+ * This is enough to merge or compare request bodies without a full (un)marshal against the type.
+ */
+public class ODataJson {
+
+	/**
+	 * Merges two json objects on the first level, the fields of the second object overwrite those of the first.
+	 * The values are copied as is, nested objects are not merged.
+	 */
+	public static String merge(String first, String second) {
+		Map<String, String> fields = getFields(first);
+		fields.putAll(getFields(second));
+		return toObject(fields);
+	}
+
+	public static String toObject(Map<String, String> fields) {
+		StringBuilder builder = new StringBuilder("{");
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			if (builder.length() > 1) {
+				builder.append(",");
+			}
+			builder.append(field.getKey()).append(":").append(field.getValue());
+		}
+		return builder.append("}").toString();
+	}
+
+	// a raw json string value without the quotes, null if it is not a string
+	public static String getString(String raw) {
+		if (raw == null || raw.length() < 2 || !raw.startsWith("\"") || !raw.endsWith("\"")) {
+			return null;
+		}
+		return raw.substring(1, raw.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+	}
+
+	// the keys are kept with their quotes, the values as raw json
+	public static Map<String, String> getFields(String json) {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		int index = skipWhitespace(json, 0);
+		if (index >= json.length() || json.charAt(index) != '{') {
+			throw new IllegalArgumentException("Expecting a json object");
+		}
+		index = skipWhitespace(json, index + 1);
+		while (index < json.length() && json.charAt(index) != '}') {
+			int keyEnd = skipString(json, index);
+			String key = json.substring(index, keyEnd);
+			index = skipWhitespace(json, keyEnd);
+			if (index >= json.length() || json.charAt(index) != ':') {
+				throw new IllegalArgumentException("Expecting ':' at position " + index);
+			}
+			int valueStart = skipWhitespace(json, index + 1);
+			int valueEnd = skipValue(json, valueStart);
+			fields.put(key, json.substring(valueStart, valueEnd).trim());
+			index = skipWhitespace(json, valueEnd);
+			if (index < json.length() && json.charAt(index) == ',') {
+				index = skipWhitespace(json, index + 1);
+			}
+		}
+		return fields;
+	}
+
+	private static int skipWhitespace(String json, int index) {
+		while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+			index++;
+		}
+		return index;
+	}
+
+	// returns the position after the closing quote
+	private static int skipString(String json, int index) {
+		if (index >= json.length() || json.charAt(index) != '"') {
+			throw new IllegalArgumentException("Expecting a string at position " + index);
+		}
+		for (int i = index + 1; i < json.length(); i++) {
+			char character = json.charAt(i);
+			if (character == '\\') {
+				i++;
+			}
+			else if (character == '"') {
+				return i + 1;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string at position " + index);
+	}
+
+	// returns the position of the ',' or '}' that ends the value
+	private static int skipValue(String json, int index) {
+		int depth = 0;
+		while (index < json.length()) {
+			char character = json.charAt(index);
+			if (character == '"') {
+				index = skipString(json, index);
+				continue;
+			}
+			else if (character == '{' || character == '[') {
+				depth++;
+			}
+			else if (character == '}' || character == ']') {
+				if (depth == 0) {
+					return index;
+				}
+				depth--;
+			}
+			else if (character == ',' && depth == 0) {
+				return index;
+			}
+			index++;
+		}
+		return index;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Collects single key lookups against the same entity set so they can be resolved with a single "in" query.
+ * The key is the literal as it appears in the url, e.g. 'abc' or 1234
+ */
+public class ODataKeyBatch {
+	
+	private Map<String, CompletableFuture<ComplexContent>> lookups = new LinkedHashMap<String, CompletableFuture<ComplexContent>>();
+	private boolean closed;
+	
+	/**
+	 * If the same key is requested multiple times, they share the result
+	 */
+	public synchronized CompletableFuture<ComplexContent> add(String key) {
+		if (closed) {
+			return null;
+		}
+		CompletableFuture<ComplexContent> future = lookups.get(key);
+		if (future == null) {
+			future = new CompletableFuture<ComplexContent>();
+			lookups.put(key, future);
+		}
+		return future;
+	}
+	
+	/**
+	 * Only the first one to close the batch gets the lookups, it is responsible for resolving them
+	 */
+	public synchronized Map<String, CompletableFuture<ComplexContent>> close() {
+		if (closed) {
+			return null;
+		}
+		closed = true;
+		return lookups;
+	}
+	
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	public synchronized int size() {
+		return lookups.size();
+	}
+}
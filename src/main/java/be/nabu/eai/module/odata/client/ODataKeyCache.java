@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the raw responses of single entity reads, keyed on the entity path (e.g. /api/data/v9.2/accounts(1234)).
+ * We keep the bytes rather than the parsed content so every caller gets its own instance to modify.
+ * The query (e.g. $expand) is stored alongside, a read with a different query is a miss and replaces the entry.
+ */
+public class ODataKeyCache {
+	
+	private static class CacheEntry {
+		private String query;
+		private byte[] content;
+		private long created = System.currentTimeMillis();
+	}
+	
+	private long timeToLive;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	private Map<String, CacheEntry> entries;
+
+	public ODataKeyCache(int maxEntries, long timeToLive) {
+		this.timeToLive = timeToLive;
+		// access ordered so we evict the least recently used
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	public synchronized byte[] get(String path, String query) {
+		CacheEntry entry = entries.get(path);
+		if (entry != null && System.currentTimeMillis() - entry.created > timeToLive) {
+			entries.remove(path);
+			entry = null;
+		}
+		if (entry == null || !equals(entry.query, query)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.content;
+	}
+	
+	public synchronized void put(String path, String query, byte[] content) {
+		CacheEntry entry = new CacheEntry();
+		entry.query = query;
+		entry.content = content;
+		entries.put(path, entry);
+	}
+	
+	public synchronized void evict(String path) {
+		entries.remove(path);
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+	public synchronized int getSize() {
+		return entries.size();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
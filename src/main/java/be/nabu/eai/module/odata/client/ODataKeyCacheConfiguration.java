@@ -0,0 +1,50 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import be.nabu.libs.types.api.annotation.Field;
+
+public class ODataKeyCacheConfiguration {
+	private String entitySet;
+	private Integer maxEntries;
+	private Long timeToLive;
+	
+	@Field(comment = "The entity set whose single entity reads should be cached")
+	public String getEntitySet() {
+		return entitySet;
+	}
+	public void setEntitySet(String entitySet) {
+		this.entitySet = entitySet;
+	}
+	
+	@Field(comment = "The maximum amount of entities that are kept, the least recently used are evicted first. Defaults to 1000.")
+	public Integer getMaxEntries() {
+		return maxEntries;
+	}
+	public void setMaxEntries(Integer maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+	
+	@Field(comment = "How long (in milliseconds) a cached entity remains valid. Defaults to 60000.")
+	public Long getTimeToLive() {
+		return timeToLive;
+	}
+	public void setTimeToLive(Long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a single field from every entity in a list response without unmarshalling the entities:
+ *
+ * {
+ * 	"@odata.context": "...",
+ * 	"value": [ { "id": "..." }, { "id": "..." } ],
+ * 	"@odata.nextLink": "..."
+ * }
+ *
+ * The response is scanned as it is read, everything else is skipped.
+ */
+public class ODataKeyScanner {
+
+	private Reader reader;
+	private String field;
+	private int peeked = -2;
+	private List<String> keys = new ArrayList<String>();
+	private String nextLink;
+
+	public ODataKeyScanner(Reader reader, String field) {
+		this.reader = reader;
+		this.field = field;
+	}
+
+	public void scan() throws IOException {
+		expect('{');
+		while (nextMember('}')) {
+			String name = readString();
+			expect(':');
+			if ("value".equals(name) && peek() == '[') {
+				scanEntities();
+			}
+			else if ("@odata.nextLink".equals(name)) {
+				nextLink = readScalar();
+			}
+			else {
+				skipValue();
+			}
+		}
+	}
+
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	public String getNextLink() {
+		return nextLink;
+	}
+
+	private void scanEntities() throws IOException {
+		expect('[');
+		while (nextMember(']')) {
+			if (peek() != '{') {
+				skipValue();
+				continue;
+			}
+			expect('{');
+			while (nextMember('}')) {
+				String name = readString();
+				expect(':');
+				if (field.equals(name)) {
+					String key = readScalar();
+					if (key != null) {
+						keys.add(key);
+					}
+				}
+				else {
+					skipValue();
+				}
+			}
+		}
+	}
+
+	// skips the separator and returns false if the container is closed
+	private boolean nextMember(char close) throws IOException {
+		int character = peek();
+		if (character == ',') {
+			read();
+			character = peek();
+		}
+		if (character == close) {
+			read();
+			return false;
+		}
+		if (character < 0) {
+			throw new IOException("Unexpected end of the response");
+		}
+		return true;
+	}
+
+	// a string, number or boolean as string, null for null or complex values
+	private String readScalar() throws IOException {
+		int character = peek();
+		if (character == '"') {
+			return readString();
+		}
+		else if (character == '{' || character == '[') {
+			skipValue();
+			return null;
+		}
+		String literal = readLiteral();
+		return "null".equals(literal) ? null : literal;
+	}
+
+	private void skipValue() throws IOException {
+		int character = peek();
+		if (character == '"') {
+			readString();
+		}
+		else if (character == '{' || character == '[') {
+			int depth = 0;
+			do {
+				character = peek();
+				if (character == '"') {
+					readString();
+					continue;
+				}
+				read();
+				if (character == '{' || character == '[') {
+					depth++;
+				}
+				else if (character == '}' || character == ']') {
+					depth--;
+				}
+				else if (character < 0) {
+					throw new IOException("Unexpected end of the response");
+				}
+			}
+			while (depth > 0);
+		}
+		else {
+			readLiteral();
+		}
+	}
+
+	private String readLiteral() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		int character = peek();
+		while (character >= 0 && character != ',' && character != '}' && character != ']' && !Character.isWhitespace(character)) {
+			builder.append((char) read());
+			character = peekRaw();
+		}
+		return builder.toString();
+	}
+
+	private String readString() throws IOException {
+		expect('"');
+		StringBuilder builder = new StringBuilder();
+		while (true) {
+			int character = reader.read();
+			if (character < 0) {
+				throw new IOException("Unterminated string in the response");
+			}
+			else if (character == '"') {
+				return builder.toString();
+			}
+			else if (character == '\\') {
+				int escaped = reader.read();
+				if (escaped < 0) {
+					throw new IOException("Unterminated string in the response");
+				}
+				switch (escaped) {
+					case 'n': builder.append('\n'); break;
+					case 'r': builder.append('\r'); break;
+					case 't': builder.append('\t'); break;
+					case 'b': builder.append('\b'); break;
+					case 'f': builder.append('\f'); break;
+					case 'u':
+						int unicode = 0;
+						for (int i = 0; i < 4; i++) {
+							int digit = reader.read();
+							if (digit < 0) {
+								throw new IOException("Unterminated unicode escape in the response");
+							}
+							int value = Character.digit(digit, 16);
+							if (value < 0) {
+								throw new IOException("Invalid unicode escape in the response: '" + (char) digit + "'");
+							}
+							unicode = unicode * 16 + value;
+						}
+						builder.append((char) unicode);
+					break;
+					default:
+						builder.append((char) escaped);
+				}
+			}
+			else {
+				builder.append((char) character);
+			}
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		int character = read();
+		if (character != expected) {
+			throw new IOException("Expected '" + expected + "' in the response but found: " + (character < 0 ? "end of stream" : "'" + (char) character + "'"));
+		}
+	}
+
+	// the next character that is not whitespace
+	private int peek() throws IOException {
+		int character = peekRaw();
+		while (character >= 0 && Character.isWhitespace(character)) {
+			peeked = -2;
+			character = peekRaw();
+		}
+		return character;
+	}
+
+	private int peekRaw() throws IOException {
+		if (peeked == -2) {
+			peeked = reader.read();
+		}
+		return peeked;
+	}
+
+	private int read() throws IOException {
+		int character = peek();
+		peeked = -2;
+		return character;
+	}
+}
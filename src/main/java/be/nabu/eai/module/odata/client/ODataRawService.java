@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Executes the same call as the regular service but returns the response of the server as is, without parsing it
+ */
+public class ODataRawService implements DefinedService {
+
+	private Function function;
+	private String id;
+	private ODataClient client;
+	// the regular service, we take the same input
+	private ODataClientService service;
+	private Structure output;
+
+	public ODataRawService(String id, ODataClient client, Function function, ODataClientService service) {
+		this.id = id;
+		this.client = client;
+		this.function = function;
+		this.service = service;
+	}
+
+	@Override
+	public ServiceInterface getServiceInterface() {
+		return new ServiceInterface() {
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				if (output == null) {
+					synchronized(ODataRawService.this) {
+						if (output == null) {
+							Structure header = new Structure();
+							header.setName("header");
+							header.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), header));
+							header.add(new SimpleElementImpl<String>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), header,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							Structure output = new Structure();
+							output.setName("output");
+							output.add(new SimpleElementImpl<Integer>("code", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), output));
+							output.add(new SimpleElementImpl<String>("contentType", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							output.add(new ComplexElementImpl("headers", header, output,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+								new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+							output.add(new SimpleElementImpl<InputStream>("stream", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(InputStream.class), output,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							ODataRawService.this.output = output;
+						}
+					}
+				}
+				return output;
+			}
+			@Override
+			public ComplexType getInputDefinition() {
+				return service.getServiceInterface().getInputDefinition();
+			}
+		};
+	}
+
+	@Override
+	public ServiceInstance newInstance() {
+		return new ServiceInstance() {
+			@Override
+			public Service getDefinition() {
+				return ODataRawService.this;
+			}
+			@Override
+			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+				return new ODataRunner(client, executionContext).runRaw(function, input, getServiceInterface().getOutputDefinition());
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getReferences() {
+		return new HashSet<String>();
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * A local copy of an entity set. Each entity is kept as it was parsed during the load together with hash indexes on the configured fields.
+ * Readers share the same instances, so they should not be modified.
+ * A refresh builds a new snapshot and swaps it in, readers always see a consistent snapshot.
+ * When this client writes to the entity set, the snapshot is no longer used until a refresh that started after the write is done.
+ */
+public class ODataReplica {
+	
+	private static class Snapshot {
+		private List<ComplexContent> entities = new ArrayList<ComplexContent>();
+		// field > value > positions of the entities
+		private Map<String, Map<String, List<Integer>>> indexes = new HashMap<String, Map<String, List<Integer>>>();
+		// when the load of this snapshot started, later changes can not be in it
+		private long started = System.currentTimeMillis();
+		// the size of the pages the server sent during the load, null if it sent everything at once
+		private Integer pageSize;
+	}
+	
+	/**
+	 * Builds a new snapshot one entity at a time, the entities don't have to be in memory all at once.
+	 */
+	public class Loader {
+		private Snapshot snapshot = new Snapshot();
+		
+		private Loader() {
+			for (String field : fields) {
+				snapshot.indexes.put(field, new HashMap<String, List<Integer>>());
+			}
+		}
+		
+		public void add(ComplexContent entity) {
+			int position = snapshot.entities.size();
+			snapshot.entities.add(entity);
+			for (String field : fields) {
+				String value = stringify(entity.get(field));
+				if (value != null) {
+					Map<String, List<Integer>> index = snapshot.indexes.get(field);
+					List<Integer> positions = index.get(value);
+					if (positions == null) {
+						positions = new ArrayList<Integer>(1);
+						index.put(value, positions);
+					}
+					positions.add(position);
+				}
+			}
+		}
+		
+		// the server decides how many entities it sends at once, answers from the replica should not be larger
+		public void setPageSize(Integer pageSize) {
+			snapshot.pageSize = pageSize;
+		}
+		
+		// swaps in the new snapshot
+		public void commit() {
+			ODataReplica.this.snapshot = snapshot;
+			lastRefresh = System.currentTimeMillis();
+		}
+	}
+	
+	private ComplexType entityType;
+	private List<String> fields;
+	private volatile Snapshot snapshot;
+	private volatile long lastRefresh, lastWrite;
+
+	public ODataReplica(ComplexType entityType, List<String> fields) {
+		this.entityType = entityType;
+		this.fields = fields;
+	}
+	
+	public Loader newLoader() {
+		return new Loader();
+	}
+	
+	/**
+	 * Marks that this client changed the entity set, the current snapshot might not reflect it.
+	 */
+	public void invalidate() {
+		lastWrite = System.currentTimeMillis();
+	}
+	
+	public ComplexType getEntityType() {
+		return entityType;
+	}
+	
+	// a snapshot that started loading in the same millisecond as a write might have missed it
+	public boolean isLoaded() {
+		Snapshot snapshot = this.snapshot;
+		return snapshot != null && snapshot.started > lastWrite;
+	}
+	
+	public boolean isIndexed(String field) {
+		return fields.contains(field);
+	}
+	
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+	
+	public Integer getPageSize() {
+		Snapshot snapshot = this.snapshot;
+		return snapshot == null ? null : snapshot.pageSize;
+	}
+	
+	public int getSize() {
+		Snapshot snapshot = this.snapshot;
+		return snapshot == null ? 0 : snapshot.entities.size();
+	}
+	
+	/**
+	 * Returns the entities that match all the conditions (field > possible values), in the order they were loaded.
+	 * Returns null if the replica is not loaded yet or one of the fields is not indexed.
+	 */
+	public List<ComplexContent> query(Map<String, List<?>> conditions, Integer offset, Integer limit) {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			return null;
+		}
+		// sorted so we keep the load order, multiple values can match the same entity
+		TreeSet<Integer> matches = null;
+		for (Map.Entry<String, List<?>> condition : conditions.entrySet()) {
+			Map<String, List<Integer>> index = snapshot.indexes.get(condition.getKey());
+			if (index == null) {
+				return null;
+			}
+			TreeSet<Integer> positions = new TreeSet<Integer>();
+			for (Object value : condition.getValue()) {
+				List<Integer> found = index.get(stringify(value));
+				if (found != null) {
+					positions.addAll(found);
+				}
+			}
+			if (matches == null) {
+				matches = positions;
+			}
+			else {
+				matches.retainAll(positions);
+			}
+		}
+		List<Integer> ordered;
+		if (matches == null) {
+			ordered = new ArrayList<Integer>();
+			for (int i = 0; i < snapshot.entities.size(); i++) {
+				ordered.add(i);
+			}
+		}
+		else {
+			ordered = new ArrayList<Integer>(matches);
+		}
+		List<ComplexContent> result = new ArrayList<ComplexContent>();
+		int start = offset == null ? 0 : Math.max(0, offset);
+		int end = limit == null ? ordered.size() : Math.min(ordered.size(), start + limit);
+		for (int i = start; i < end; i++) {
+			result.add(snapshot.entities.get(ordered.get(i)));
+		}
+		return result;
+	}
+	
+	private static String stringify(Object value) {
+		return value == null ? null : ConverterFactory.getInstance().getConverter().convert(value, String.class);
+	}
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.client;
+
+import java.util.List;
+
+import be.nabu.libs.types.api.annotation.Field;
+
+public class ODataReplicaConfiguration {
+	private String entitySet;
+	private Long refreshInterval;
+	private List<String> indexes;
+	
+	@Field(comment = "The entity set that should be replicated locally")
+	public String getEntitySet() {
+		return entitySet;
+	}
+	public void setEntitySet(String entitySet) {
+		this.entitySet = entitySet;
+	}
+	
+	@Field(comment = "How often (in milliseconds) the replica is reloaded from the server. Defaults to 300000.")
+	public Long getRefreshInterval() {
+		return refreshInterval;
+	}
+	public void setRefreshInterval(Long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+	
+	@Field(comment = "The fields you want to filter on, the primary key is always indexed. Lists with filters on other fields are sent to the server.")
+	public List<String> getIndexes() {
+		return indexes;
+	}
+	public void setIndexes(List<String> indexes) {
+		this.indexes = indexes;
+	}
+}
@@ -17,30 +17,54 @@
 
 package be.nabu.eai.module.odata.client;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
 import java.nio.charset.Charset;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import javax.xml.bind.annotation.XmlElement;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import be.nabu.eai.module.odata.client.api.ODataRequestRewriter;
 import be.nabu.eai.repository.util.Filter;
 import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.http.HTTPException;
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.api.client.HTTPClient;
 import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
 import be.nabu.libs.http.core.HTTPRequestAuthenticatorFactory;
 import be.nabu.libs.http.core.HTTPUtils;
 import be.nabu.libs.odata.ODataDefinition;
@@ -51,6 +75,9 @@ import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.TransactionContext;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
@@ -62,24 +89,27 @@ import be.nabu.libs.types.api.annotation.Field;
 import be.nabu.libs.types.binding.api.MarshallableBinding;
 import be.nabu.libs.types.binding.api.UnmarshallableBinding;
 import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
 import be.nabu.libs.types.binding.json.JSONBinding;
 import be.nabu.libs.types.java.BeanInstance;
 import be.nabu.libs.types.java.BeanResolver;
-import be.nabu.libs.types.map.MapTypeGenerator;
 import be.nabu.libs.types.mask.MaskedContent;
 import be.nabu.libs.types.properties.AliasProperty;
 import be.nabu.libs.types.properties.CollectionNameProperty;
-import be.nabu.libs.types.properties.DuplicateProperty;
 import be.nabu.libs.types.properties.ForeignKeyProperty;
-import be.nabu.libs.types.properties.ForeignNameProperty;
 import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
 import be.nabu.libs.types.properties.PrimaryKeyProperty;
+import be.nabu.libs.types.structure.Structure;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.mime.api.ContentPart;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.api.Part;
 import be.nabu.utils.mime.impl.FormatException;
 import be.nabu.utils.mime.impl.MimeHeader;
 import be.nabu.utils.mime.impl.MimeUtils;
@@ -98,34 +128,354 @@ import nabu.protocols.http.client.Services;
 public class ODataRunner {
 	private ODataDefinition definition;
 	private ODataClient client;
+	// we capture the execution context so we can send requests from other threads as well
+	private ExecutionContext executionContext;
+	private String traceId;
+	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	public ODataRunner(ODataClient client) {
+		this(client, ServiceRuntime.getRuntime() == null ? null : ServiceRuntime.getRuntime().getExecutionContext());
+	}
+
+	public ODataRunner(ODataClient client, ExecutionContext executionContext) {
 		this.client = client;
+		this.executionContext = executionContext;
 		this.definition = client == null ? null : client.getDefinition();
 	}
-	
-	private HTTPResponse run(String transactionId, HTTPRequest...requests) throws KeyStoreException, NoSuchAlgorithmException, IOException, FormatException, ParseException {
+
+	/**
+	 * Independent requests outside of a transaction are sent in parallel if the client allows it, the response of the last request is returned.
+	 * Within a transaction they are sent one after the other on the transactional connection.
+	 */
+	private HTTPResponse run(String transactionId, HTTPRequest...requests) throws Exception {
+		Integer concurrency = client.getConfig().getRequestConcurrency();
+		if (requests.length > 1 && concurrency != null && concurrency > 1 && transactionId == null) {
+			List<Callable<HTTPResponse>> tasks = new ArrayList<Callable<HTTPResponse>>();
+			for (final HTTPRequest request : requests) {
+				tasks.add(new Callable<HTTPResponse>() {
+					@Override
+					public HTTPResponse call() throws Exception {
+						// the limit is shared by all the calls on this client
+						Semaphore permits = client.getRequestPermits();
+						permits.acquire();
+						try {
+							return send(null, request);
+						}
+						finally {
+							permits.release();
+						}
+					}
+				});
+			}
+			List<HTTPResponse> responses = fanOut(tasks, concurrency);
+			return responses.get(responses.size() - 1);
+		}
 		HTTPResponse response = null;
 		for (HTTPRequest request : requests) {
-			if (client.getConfig().getSecurityType() != null) {
-				if (!HTTPRequestAuthenticatorFactory.getInstance().getAuthenticator(client.getConfig().getSecurityType())
-					.authenticate(request, client.getConfig().getSecurityContext(), null, false)) {
-					throw new IllegalStateException("Could not authenticate the request");
-				}
+			response = send(transactionId, request);
+		}
+		return response;
+	}
+	
+	private HTTPResponse send(String transactionId, HTTPRequest request) throws KeyStoreException, NoSuchAlgorithmException, IOException, FormatException, ParseException {
+		return send(transactionId, request, null);
+	}
+	
+	/**
+	 * If a timeline is passed in, the caller can add phases of its own (e.g. unmarshalling) and is responsible for reporting it.
+	 */
+	private HTTPResponse send(String transactionId, HTTPRequest request, ODataTimeline timeline) throws KeyStoreException, NoSuchAlgorithmException, IOException, FormatException, ParseException {
+		return send(transactionId, request, timeline, "https".equals(definition.getScheme()), false, true);
+	}
+	
+	/**
+	 * External requests go to another host (e.g. an upload session), they are not authenticated or rewritten for this client but they are traced and retried when throttled.
+	 * If the response is not validated, error responses are returned as is instead of being thrown (e.g. to relay them).
+	 */
+	private HTTPResponse send(String transactionId, HTTPRequest request, ODataTimeline timeline, boolean secure, boolean external, boolean validate) throws KeyStoreException, NoSuchAlgorithmException, IOException, FormatException, ParseException {
+		boolean report = timeline == null;
+		if (timeline == null) {
+			timeline = new ODataTimeline(request.getMethod(), request.getTarget());
+		}
+		try {
+			// https://www.w3.org/TR/trace-context/#traceparent-header
+			if (client.getConfig().isPropagateTrace() && request.getContent() instanceof ModifiablePart && MimeUtils.getHeader("traceparent", request.getContent().getHeaders()) == null) {
+				String traceParent = "00-" + getTraceId() + "-" + String.format("%016x", ThreadLocalRandom.current().nextLong()) + "-01";
+				((ModifiablePart) request.getContent()).setHeader(new MimeHeader("traceparent", traceParent));
+				timeline.setTraceParent(traceParent);
 			}
-			
-			ODataRequestRewriter rewriter = client.getRewriter();
+			timeline.setRequestSize(getContentLength(request.getContent() == null ? null : request.getContent().getHeaders()));
+			// the request is only rewritten once, retries send the same rewritten request
+			ODataRequestRewriter rewriter = external ? null : client.getRewriter();
 			if (rewriter != null) {
 				rewriter.rewrite(client.getId(), request);
 			}
-				
-			HTTPClient client = Services.getTransactionable(ServiceRuntime.getRuntime().getExecutionContext(), transactionId == null ? null : transactionId.toString(), this.client.getConfig().getHttpClient()).getClient();
-			response = client.execute(request, null, "https".equals(definition.getScheme()), true);
-			HTTPUtils.validateResponse(response);
+			timeline.mark("rewrite");
+			
+			HTTPResponse response = null;
+			int attempt = 0;
+			while (true) {
+				// credentials (e.g. a token) may have expired while we were waiting so we authenticate again on every attempt
+				if (!external && client.getConfig().getSecurityType() != null) {
+					if (!HTTPRequestAuthenticatorFactory.getInstance().getAuthenticator(client.getConfig().getSecurityType())
+						.authenticate(request, client.getConfig().getSecurityContext(), null, false)) {
+						throw new IllegalStateException("Could not authenticate the request");
+					}
+				}
+				timeline.mark("authenticate");
+	
+				HTTPClient client = Services.getTransactionable(executionContext, transactionId == null ? null : transactionId.toString(), this.client.getConfig().getHttpClient()).getClient();
+				timeline.mark("client");
+				// connecting, sending and receiving the response are done by the http client in one go
+				response = client.execute(request, null, secure, true);
+				timeline.mark("exchange");
+				timeline.setCode(response.getCode());
+				// when the server is throttling us, we wait as long as it asks us to and try again
+				Integer maxThrottleRetries = this.client.getConfig().getMaxThrottleRetries();
+				// a streamed body can only be sent once
+				boolean resendable = !(request.getContent() instanceof ContentPart) || ((ContentPart) request.getContent()).isReopenable();
+				if ((response.getCode() == 429 || response.getCode() == 503) && maxThrottleRetries != null && attempt < maxThrottleRetries && resendable) {
+					attempt++;
+					long retryAfter = getRetryAfter(response, attempt);
+					// release the connection while we wait
+					if (response.getContent() instanceof ContentPart) {
+						ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+						if (readable != null) {
+							readable.close();
+						}
+					}
+					try {
+						Thread.sleep(retryAfter);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while waiting for throttled request", e);
+					}
+					timeline.mark("throttled");
+					continue;
+				}
+				break;
+			}
+			timeline.setResponseSize(getContentLength(response.getContent() == null ? null : response.getContent().getHeaders()));
+			if (validate) {
+				HTTPUtils.validateResponse(response);
+			}
+			return response;
 		}
-		return response;
+		finally {
+			if (report) {
+				report(timeline);
+			}
+		}
+	}
+	
+	// all the requests sent by this runner (usually one service call) share a trace id
+	private String getTraceId() {
+		if (traceId == null) {
+			synchronized(this) {
+				if (traceId == null) {
+					traceId = String.format("%016x%016x", ThreadLocalRandom.current().nextLong(), ThreadLocalRandom.current().nextLong());
+				}
+			}
+		}
+		return traceId;
+	}
+	
+	private static Long getContentLength(Header...headers) {
+		Header header = headers == null ? null : MimeUtils.getHeader("Content-Length", headers);
+		if (header != null && header.getValue() != null) {
+			try {
+				return Long.parseLong(header.getValue().trim());
+			}
+			catch (NumberFormatException e) {
+				// unknown
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * The timeline is added to the tracing of the service runtime, slow requests are logged as well (optionally sampled).
+	 */
+	private void report(ODataTimeline timeline) {
+		ServiceRuntime runtime = ServiceRuntime.getRuntime();
+		if (runtime != null && runtime.getRuntimeTracker() != null) {
+			runtime.getRuntimeTracker().report(timeline);
+		}
+		Long threshold = client.getConfig().getSlowRequestThreshold();
+		if (threshold != null && timeline.getDuration() >= threshold) {
+			Double sampleRate = client.getConfig().getSlowRequestSampleRate();
+			if (sampleRate == null || sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+				logger.warn("Slow request for " + client.getId() + ": " + timeline);
+			}
+		}
+	}
+
+	// the retry-after can be in seconds or a http date, if we don't get anything usable we back off exponentially
+	private long getRetryAfter(HTTPResponse response, int attempt) {
+		Header header = response.getContent() == null ? null : MimeUtils.getHeader("Retry-After", response.getContent().getHeaders());
+		if (header != null && header.getValue() != null) {
+			String value = header.getValue().trim();
+			try {
+				return Math.max(0, Long.parseLong(value) * 1000);
+			}
+			catch (NumberFormatException e) {
+				try {
+					SimpleDateFormat formatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+					return Math.max(0, formatter.parse(value).getTime() - new Date().getTime());
+				}
+				catch (Exception f) {
+					// fall through to the default
+				}
+			}
+		}
+		return Math.min(60000, 1000l * (1 << Math.min(attempt - 1, 6)));
+	}
+
+	// the input can be a variant of the function input (e.g. for counting) so not all fields are guaranteed to exist
+	private static Object getValue(ComplexContent input, String name) {
+		return input == null || input.getType().get(name) == null ? null : input.get(name);
+	}
+
+	// the id of an associated entity, e.g. https://example.com/api/data/v9.2/accounts(00000000-0000-0000-0000-000000000001) -> 00000000-0000-0000-0000-000000000001
+	private static String getAssociationId(String odataId) {
+		int start = odataId.lastIndexOf('(');
+		int end = start < 0 ? -1 : odataId.indexOf(')', start);
+		return end > start + 1 ? odataId.substring(start + 1, end) : odataId;
+	}
+	
+	// links returned by the server (e.g. @odata.nextLink) are usually absolute, we send them relative to the host
+	private String getLinkTarget(String link) {
+		String absolute = definition.getScheme() + "://" + definition.getHost();
+		if (link.startsWith(absolute)) {
+			return link.substring(absolute.length());
+		}
+		else if (link.startsWith("http://") || link.startsWith("https://")) {
+			int index = link.indexOf('/', link.indexOf("://") + 3);
+			return index < 0 ? "/" : link.substring(index);
+		}
+		return link;
 	}
 	
+	private Charset getCharset() {
+		Charset charset = client.getConfig().getCharset();
+		return charset == null ? Charset.forName("UTF-8") : charset;
+	}
+
+	// replace the variables in the base path
+	private String getBasePath(ComplexContent input) {
+		Element<?> pathElement = input == null ? null : input.getType().get("path");
+		ComplexContent path = pathElement == null ? null : (ComplexContent) input.get("path");
+		// if we have a path element, we likely have variables in the path, check it and replace it
+		if (path == null) {
+			return definition.getBasePath();
+		}
+		// alternating literal parts and variable names
+		List<String> segments = client.getBasePathSegments();
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < segments.size(); i++) {
+			if (i % 2 == 0) {
+				builder.append(segments.get(i));
+			}
+			else {
+				String value = path.getType().get(segments.get(i)) == null ? null : (String) path.get(segments.get(i));
+				// don't replace if you don't fill it in, it might be part of the url?
+				if (value == null) {
+					builder.append('{').append(segments.get(i)).append('}');
+				}
+				else {
+					builder.append(value);
+				}
+			}
+		}
+		return builder.toString();
+	}
+
+	// check for parent ids for contained navigation properties
+	@SuppressWarnings("rawtypes")
+	private String getTarget(Function function, ComplexContent input, String target) {
+		for (Element<?> element : TypeUtils.getAllChildren(function.getInput())) {
+			// we have an input?
+			if (element.getType() instanceof ComplexType) {
+				ComplexContent functionInput = (ComplexContent) getValue(input, element.getName());
+				if (functionInput != null) {
+					for (Element<?> child : TypeUtils.getAllChildren(functionInput.getType())) {
+						// if it is a parent, add it to the path
+						int indexOf = child.getName().indexOf("@odata.parent.id");
+						if (indexOf > 0) {
+							Object parentValue = functionInput.get(child.getName());
+							if (parentValue != null) {
+								if (!(parentValue instanceof Iterable)) {
+									parentValue = Arrays.asList(parentValue);
+								}
+								String entitySetName = child.getName().substring(0, indexOf);
+								for (Object singleParentValue : (Iterable) parentValue) {
+									if (singleParentValue != null) {
+										if (client.getConfig().isKeyAsSegment()) {
+											// keys can be given as segments
+											// in sharepoint the segment way works /sites/id but the default /sites(id) does not
+											// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
+											target += "/" + entitySetName + "/" + ((Marshallable) child.getType()).marshal(singleParentValue, child.getProperties());
+										}
+										else {
+											target += "/" + entitySetName + "(" + ((Marshallable) child.getType()).marshal(singleParentValue, child.getProperties()) + ")";
+										}
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Runs the tasks on the client executor with at most the given amount of them in parallel, the results are returned in the order of the tasks.
+	 * If any of the tasks fail, the first exception is thrown after all the tasks have finished.
+	 */
+	private <T> List<T> fanOut(List<Callable<T>> tasks, int concurrency) throws Exception {
+		List<T> results = new ArrayList<T>(Collections.<T>nCopies(tasks.size(), null));
+		int workers = Math.min(Math.max(1, concurrency), tasks.size());
+		AtomicInteger index = new AtomicInteger(0);
+		List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<Throwable>());
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int current;
+				while ((current = index.getAndIncrement()) < tasks.size()) {
+					try {
+						results.set(current, tasks.get(current).call());
+					}
+					catch (Throwable e) {
+						exceptions.add(e);
+					}
+				}
+			}
+		};
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		// the current thread is one of the workers
+		for (int i = 1; i < workers; i++) {
+			futures.add(client.getExecutor().submit(worker));
+		}
+		worker.run();
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		if (!exceptions.isEmpty()) {
+			Throwable throwable = exceptions.get(0);
+			for (int i = 1; i < exceptions.size(); i++) {
+				throwable.addSuppressed(exceptions.get(i));
+			}
+			if (throwable instanceof Exception) {
+				throw (Exception) throwable;
+			}
+			throw new RuntimeException(throwable);
+		}
+		return results;
+	}
+
 	public static class Association {
 		private String odataId;
 
@@ -141,6 +491,7 @@ public class ODataRunner {
 	
 	public static class AssociationList {
 		private List<Association> associations;
+		private String nextLink;
 
 		@Field(name = "value")
 		public List<Association> getAssociations() {
@@ -150,77 +501,50 @@ public class ODataRunner {
 		public void setAssociations(List<Association> associations) {
 			this.associations = associations;
 		}
+
+		@Field(alias = "@odata.nextLink")
+		public String getNextLink() {
+			return nextLink;
+		}
+
+		public void setNextLink(String nextLink) {
+			this.nextLink = nextLink;
+		}
 	}
 	
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public ComplexContent run(Function function, ComplexContent input) {
+		return run(function, input, function.getOutput());
+	}
+	
+	/**
+	 * Runs the function on the executor of the client, the calling thread is not blocked while waiting for the server.
+	 * If virtual threads are enabled, thousands of calls can be in flight without a matching amount of platform threads, otherwise they are limited by the max threads of the client.
+	 * Failures complete the future exceptionally.
+	 */
+	public CompletableFuture<ComplexContent> runAsync(final Function function, final ComplexContent input, final ComplexType output) {
+		return CompletableFuture.supplyAsync(new Supplier<ComplexContent>() {
+			@Override
+			public ComplexContent get() {
+				return run(function, input, output);
+			}
+		}, client.getExecutor());
+	}
+	
+	/**
+	 * The output can be an extension of the function output, for example to contain the created entity for deep inserts
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ComplexContent run(Function function, ComplexContent input, ComplexType output) {
 		try {
 			Object transactionId = input == null ? null : input.get("transactionId");
-			
-			String target = definition.getBasePath();
-			
-			Element<?> pathElement = input.getType().get("path");
-			// if we have a path element, we likely have variables in the path, check it and replace it
-			if (pathElement != null) {
-				for (Element<?> child : TypeUtils.getAllChildren((ComplexType) pathElement.getType())) {
-					String value = (String) input.get("path/" + child.getName());
-					// don't replace if you don't fill it in, it might be part of the url?
-					if (value != null) {
-						target = target.replaceAll("\\{[\\s]*" + child.getName() + "[\\s]*\\}", value == null ? "" : value);
-					}
-				}
-			}
-			
-			Collection<Element<?>> inputChildren = TypeUtils.getAllChildren(function.getInput());
-			Collection<Element<?>> outputChildren = TypeUtils.getAllChildren(function.getOutput());
-			
-			ComplexType usedType = null;
-			// check for parent ids for contained navigation properties
-			for (Element<?> element : inputChildren) {
-				// we have an input?
-				if (element.getType() instanceof ComplexType) {
-					usedType = (ComplexType) element.getType();
-					ComplexContent functionInput = input == null ? null : (ComplexContent) input.get(element.getName());
-					if (functionInput != null) {
-						for (Element<?> child : TypeUtils.getAllChildren(functionInput.getType())) {
-							// if it is a parent, add it to the path
-							int indexOf = child.getName().indexOf("@odata.parent.id");
-							if (indexOf > 0) {
-								Object parentValue = functionInput.get(child.getName());
-								if (parentValue != null) {
-									if (!(parentValue instanceof Iterable)) {
-										parentValue = Arrays.asList(parentValue);
-									}
-									String entitySetName = child.getName().substring(0, indexOf);
-									for (Object singleParentValue : (Iterable) parentValue) {
-										if (singleParentValue != null) {
-											if (client.getConfig().isKeyAsSegment()) {
-												// keys can be given as segments
-												// in sharepoint the segment way works /sites/id but the default /sites(id) does not
-												// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
-												target += "/" + entitySetName + "/" + ((Marshallable) child.getType()).marshal(singleParentValue, child.getProperties());
-											}
-											else {
-												target += "/" + entitySetName + "(" + ((Marshallable) child.getType()).marshal(singleParentValue, child.getProperties()) + ")";
-											}
-										}
-									}
-								}
-							}
-						}
-					}
-				}
-			}
+
 			// we want to merge the associations
 			// according to the documentation, any contained relations are added:
 			// http://docs.oasis-open.org/odata/odata/v4.0/errata02/os/complete/part1-protocol/odata-v4.0-errata02-os-part1-protocol-complete.html#_Toc406398329
 			// "The entity MUST NOT contain related entities as inline content. It MAY contain binding information for navigation properties. For single-valued navigation properties this replaces the relationship. For collection-valued navigation properties this adds to the relationship.
 			// TODO: we could do this in one transaction using $batch: https://learn.microsoft.com/en-us/dynamics365/business-central/dev-itpro/webservices/use-odata-batch
-			Charset charset = client.getConfig().getCharset();
-			if (charset == null) {
-				charset = Charset.forName("UTF-8");
-			}
+			Charset charset = getCharset();
 			// TODO: probably does not work for pure "containstarget", the absolute ids used for creating new associations do not take this into account
 			if ("MERGE-ASSOCIATIONS".equals(function.getMethod()) || "ADD-ASSOCIATIONS".equals(function.getMethod()) || "REMOVE-ASSOCIATIONS".equals(function.getMethod()) || "LIST-ASSOCIATIONS".equals(function.getMethod())) {
 				// typeEntity == function.getContext() -> the entitysetname
@@ -242,6 +566,8 @@ public class ODataRunner {
 				
 				String entityId = ((Marshallable) entityIdElement.getType()).marshal(input.get("entityId"), entityIdElement.getProperties());
 				List boundIds = (List) input.get("boundIds");
+
+				String target = getTarget(function, input, getBasePath(input));
 				// convert to string
 				if (boundIds != null) {
 					for (int i = 0; i < boundIds.size(); i++) {
@@ -272,31 +598,37 @@ public class ODataRunner {
 				listTarget += "/$ref";
 				
 				if ("MERGE-ASSOCIATIONS".equals(function.getMethod())) {
-					ModifiablePart part = new PlainMimeEmptyPart(null, 
-						new MimeHeader("Content-Length", "0"),
-						new MimeHeader("Accept", "application/json"),
-						new MimeHeader("Host", definition.getHost())
-					);
-					DefaultHTTPRequest request = new DefaultHTTPRequest("GET", listTarget, part);
-					HTTPResponse response = run((String) transactionId, request);
 					JSONBinding binding = new JSONBinding((ComplexType) BeanResolver.getInstance().resolve(AssociationList.class), charset);
 					binding.setIgnoreUnknownElements(true);
-					ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
-					if (readable != null) {
-						try {
-							AssociationList list = TypeUtils.getAsBean(binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]), AssociationList.class);
-							if (list.getAssociations() != null) {
-								for (Association association : list.getAssociations()) {
-									String odataId = association.getOdataId();
-									if (odataId != null) {
-										String id = odataId.replaceAll(".*\\(([^)]+)\\).*?", "$1");
-										existingAssociations.put(id, odataId);
+					// large collections are paged by the server, we follow the next links until we have them all
+					while (listTarget != null) {
+						ModifiablePart part = new PlainMimeEmptyPart(null, 
+							new MimeHeader("Content-Length", "0"),
+							new MimeHeader("Accept", "application/json"),
+							new MimeHeader("Host", definition.getHost())
+						);
+						DefaultHTTPRequest request = new DefaultHTTPRequest("GET", listTarget, part);
+						HTTPResponse response = run((String) transactionId, request);
+						listTarget = null;
+						ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+						if (readable != null) {
+							try {
+								AssociationList list = TypeUtils.getAsBean(binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]), AssociationList.class);
+								if (list.getAssociations() != null) {
+									for (Association association : list.getAssociations()) {
+										String odataId = association.getOdataId();
+										if (odataId != null) {
+											existingAssociations.put(getAssociationId(odataId), odataId);
+										}
 									}
 								}
+								if (list.getNextLink() != null && !list.getNextLink().trim().isEmpty()) {
+									listTarget = getLinkTarget(list.getNextLink());
+								}
+							}
+							finally {
+								readable.close();
 							}
-						}
-						finally {
-							readable.close();
 						}
 					}
 				}
@@ -315,11 +647,6 @@ public class ODataRunner {
 				else if ("LIST-ASSOCIATIONS".equals(function.getMethod())) {
 					Value<String> property = boundIdsElement.getProperty(ForeignKeyProperty.getInstance());
 					String primaryKeyField = property.getValue().split(":")[1];
-					ModifiablePart part = new PlainMimeEmptyPart(null, 
-						new MimeHeader("Content-Length", "0"),
-						new MimeHeader("Accept", "application/json"),
-						new MimeHeader("Host", definition.getHost())
-					);
 					String filter = input == null ? null : (String) input.get("filter");
 					List<Filter> filters = input == null ? null : (List<Filter>) input.get("filters");
 					// if you didn't set an explicit filter, you might have used the filters array
@@ -328,68 +655,62 @@ public class ODataRunner {
 					}
 					// the "ref" list returns URLs to the entities, it is however not easy to consistently extract the ids of said entities from these urls
 					// instead we do a "regular" list and extract the primary key from the resultset
-					listTarget = listTarget.replaceAll("/\\$ref$", "");
+					/**
+					 * we expect the "value" attribute to contain a list of entities, in our usecase the definition stated a low level directoryObject as result type and at runtime the actual extension type as passed in as @odata.type
+					 * however, the low level type correctly identified the "id" field as primary key so it is easier to extract this way:
+					 * 
+					 * {
+						    "@odata.context": "https://graph.microsoft.com/v1.0/$metadata#directoryObjects",
+						    "value": [
+						        {
+						            "@odata.type": "#microsoft.graph.user",
+						            "id": "97cd6538-d5dc-4b01-8a56-773b03caece4",
+						            "businessPhones": [],
+						          ...
+						          
+					 * The $ref version returned this: {
+						    "@odata.context": "https://graph.microsoft.com/v1.0/$metadata#directoryObjects",
+						    "value": [
+						        {
+						            "@odata.id": "https://graph.microsoft.com/v2/e2420cec-6a11-44aa-8c75-78da8b7e7a9d/directoryObjects/97cd6538-d5dc-4b01-8a56-773b03caece4/Microsoft.DirectoryServices.User"
+						        },
+						        ...
+						    ]
+						}
+					 *
+					 * we only ask for the primary key and scan for it without unmarshalling the entities
+					 */
+					listTarget = listTarget.replaceAll("/\\$ref$", "") + "?$select=" + URIUtils.encodeURL(primaryKeyField);
 					if (filter != null && !filter.trim().isEmpty()) {
-						listTarget += "?$filter=" + URIUtils.encodeURL(filter);
+						listTarget += "&$filter=" + URIUtils.encodeURL(filter);
 					}
-					DefaultHTTPRequest request = new DefaultHTTPRequest("GET", listTarget, part);
-					HTTPResponse response = run((String) transactionId, request);
-					JSONBinding binding = new JSONBinding(new MapTypeGenerator(), charset);
-					binding.setAddDynamicElementDefinitions(true);
-					binding.setAllowDynamicElements(true);
-					ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
-					if (readable != null) {
-						try {
-							ComplexContent unmarshalled = binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
-							/**
-							 * we expect the "value" attribute to contain a list of entities, in our usecase the definition stated a low level directoryObject as result type and at runtime the actual extension type as passed in as @odata.type
-							 * however, the low level type correctly identified the "id" field as primary key so it is easier to extract this way:
-							 * 
-							 * {
-								    "@odata.context": "https://graph.microsoft.com/v1.0/$metadata#directoryObjects",
-								    "value": [
-								        {
-								            "@odata.type": "#microsoft.graph.user",
-								            "id": "97cd6538-d5dc-4b01-8a56-773b03caece4",
-								            "businessPhones": [],
-								          ...
-								          
-							 * The $ref version returned this: {
-								    "@odata.context": "https://graph.microsoft.com/v1.0/$metadata#directoryObjects",
-								    "value": [
-								        {
-								            "@odata.id": "https://graph.microsoft.com/v2/e2420cec-6a11-44aa-8c75-78da8b7e7a9d/directoryObjects/97cd6538-d5dc-4b01-8a56-773b03caece4/Microsoft.DirectoryServices.User"
-								        },
-								        {
-								            "@odata.id": "https://graph.microsoft.com/v2/e2420cec-6a11-44aa-8c75-78da8b7e7a9d/directoryObjects/b81a6be1-210a-442a-834b-90cde4623a08/Microsoft.DirectoryServices.User"
-								        },
-								        {
-								            "@odata.id": "https://graph.microsoft.com/v2/e2420cec-6a11-44aa-8c75-78da8b7e7a9d/directoryObjects/e36c3567-81df-4ca0-83e7-83a7680dd61b/Microsoft.DirectoryServices.User"
-								        },
-								        {
-								            "@odata.id": "https://graph.microsoft.com/v2/e2420cec-6a11-44aa-8c75-78da8b7e7a9d/directoryObjects/dec22cd6-1d15-483d-a7e0-bafea34f72f1/Microsoft.DirectoryServices.User"
-								        }
-								    ]
-								}
-							 */
-							if (unmarshalled != null && unmarshalled.get("value") instanceof List) {
-								for (Object single : (List) unmarshalled.get("value")) {
-									if (single instanceof ComplexContent) {
-										Object object = ((ComplexContent) single).get(primaryKeyField);
-										if (object != null) {
-											boundIds.add(object);
-										}
-									}
+					// large collections are paged by the server, we follow the next links until we have them all
+					while (listTarget != null) {
+						ModifiablePart part = new PlainMimeEmptyPart(null, 
+							new MimeHeader("Content-Length", "0"),
+							new MimeHeader("Accept", getAccept(ODataMetadataLevel.NONE)),
+							new MimeHeader("Host", definition.getHost())
+						);
+						HTTPResponse response = run((String) transactionId, new DefaultHTTPRequest("GET", listTarget, part));
+						listTarget = null;
+						ReadableContainer<ByteBuffer> readable = response.getContent() instanceof ContentPart ? ((ContentPart) response.getContent()).getReadable() : null;
+						if (readable != null) {
+							try {
+								ODataKeyScanner scanner = new ODataKeyScanner(new BufferedReader(new InputStreamReader(IOUtils.toInputStream(readable), charset)), primaryKeyField);
+								scanner.scan();
+								boundIds.addAll(scanner.getKeys());
+								if (scanner.getNextLink() != null && !scanner.getNextLink().trim().isEmpty()) {
+									listTarget = getLinkTarget(scanner.getNextLink());
 								}
 							}
+							finally {
+								readable.close();
+							}
 						}
-						finally {
-							readable.close();
-						}
-						ComplexContent listOutput = function.getOutput().newInstance();
-						listOutput.set("boundIds", boundIds);
-						return listOutput;
 					}
+					ComplexContent listOutput = output.newInstance();
+					listOutput.set("boundIds", boundIds);
+					return listOutput;
 				}
 				
 				List<DefaultHTTPRequest> requests = new ArrayList<DefaultHTTPRequest>();
@@ -397,9 +718,11 @@ public class ODataRunner {
 				// it appears you can not do a batch delete of all references: https://stackoverflow.com/questions/24213664/delete-all-related-odata-entities-in-one-request-from-client
 				// then delete all the ones that are no longer necessary
 				// e.g. DELETE /api/data/v9.2/{typeEntity}({entityId})/{navigationProperty}({boundEntityId})/$ref
+				// hash lookups, the collections can contain thousands of entries
+				Set<String> wanted = new LinkedHashSet<String>((List<String>) boundIds);
 				for (String key : existingAssociations.keySet()) {
 					// no longer exists, add a delete for it
-					if (boundIds.indexOf(key) < 0) {
+					if (!wanted.contains(key)) {
 						// not sure if this needs to be key-as-segmented?
 						ModifiablePart part = new PlainMimeEmptyPart(null, 
 							new MimeHeader("Content-Length", "0"),
@@ -418,7 +741,7 @@ public class ODataRunner {
 				// e.g. PUT /api/data/v9.2/{typeEntity}({entityId})/{navigationProperty}/$ref
 				// body: {"odataId": "..."}
 				// must be a relative uri /{boundEntityType}({boundEntityId})
-				for (String boundId : (List<String>) boundIds) {
+				for (String boundId : wanted) {
 					if (!existingAssociations.containsKey(boundId)) {
 						// not sure if this needs to be key-as-segmented?
 						String odataBaseUrl = definition.getScheme() + "://" + definition.getHost() + definition.getBasePath();
@@ -440,336 +763,1467 @@ public class ODataRunner {
 				if (requests.size() > 0) {
 					run((String) transactionId, requests.toArray(new HTTPRequest[requests.size()]));
 				}
-				return function.getOutput().newInstance();
+				return output.newInstance();
 			}
 			else {
-				// if we do not have a complex type in the input, check the output
-				if (usedType == null) {
-					for (Element<?> element : outputChildren) {
-						// we have an input?
-						if (element.getType() instanceof ComplexType) {
-							usedType = (ComplexType) element.getType();
-						}
-					}
-				}
-				
-				// if we have filters, check if you are filtering on the parent ids, we also need to add them then!
-				List<Filter> filters = input == null ? null : (List<Filter>) input.get("filters");
-				if (filters != null && !filters.isEmpty()) {
-					// don't modify the original list
-					filters = new ArrayList<Filter>(filters);
-					Iterator<Filter> iterator = filters.iterator();
-					while (iterator.hasNext()) {
-						Object filterObject = iterator.next();
-						if (filterObject instanceof MaskedContent) {
-							filterObject = ((MaskedContent) filterObject).getOriginal();
-						}
-						if (filterObject instanceof BeanInstance) {
-							filterObject = ((BeanInstance<?>) filterObject).getUnwrapped();
-						}
-						Filter filter = (Filter) filterObject;
-						int indexOf = filter.getKey().indexOf("@odata.parent.id");
-						if (indexOf > 0) {
-							if (filter.getValues() != null && !filter.getValues().isEmpty()) {
-								String entitySetName = filter.getKey().substring(0, indexOf);
-								for (Object singleParentValue : filter.getValues()) {
-									if (singleParentValue != null) {
-										// keys can be given as segments
-										// in sharepoint the segment way works /sites/id but the default /sites(id) does not so we use this as default for now
-										// in the future we may want to offer configuration to tweak this behavior because it is hard to rewrite this into the other syntax
-										// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
-										Element<?> filterElement = usedType == null ? null : usedType.get(filter.getKey());
-										String stringified = null;
-										if (filterElement == null) {
-											stringified = ConverterFactory.getInstance().getConverter().convert(singleParentValue, String.class);
-										}
-										else {
-											stringified = ((Marshallable) filterElement.getType()).marshal(singleParentValue, filterElement.getProperties());
-										}
-										if (client.getConfig().isKeyAsSegment()) {
-											// keys can be given as segments
-											// in sharepoint the segment way works /sites/id but the default /sites(id) does not
-											// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
-											target += "/" + entitySetName + "/" + stringified;
-										}
-										else {
-											target += "/" + entitySetName + "(" + stringified + ")";
-											
-										}
-									}
-								}	
-							}
-							iterator.remove();
-						}
-					}
-				}
-				
-				// the context is set to the entity set name
-				target += "/" + function.getContext();
-				ComplexContent functionInput = null;
-				for (Element<?> element : inputChildren) {
-					// if we have a primary key field, we are likely doing a specific get or an update/delete
-					// either way we have to pass it in the URL
-					Boolean primaryKey = ValueUtils.getValue(PrimaryKeyProperty.getInstance(), element.getProperties());
-					if (primaryKey != null && primaryKey) {
-						target += "(";
-						boolean closeQuotes = false;
-						// uuids don't need quotes, nor do numbers
-						if (String.class.isAssignableFrom(((SimpleType<?>) element.getType()).getInstanceClass())) {
-							target += "'";
-							closeQuotes = true;
-						}
-						target += ((Marshallable) element.getType()).marshal(input.get(element.getName()), element.getProperties());
-						if (closeQuotes) {
-							target += "'";
-						}
-						target += ")";
-					}
-					// we have an input?
-					if (element.getType() instanceof ComplexType) {
-						functionInput = (ComplexContent) input.get(element.getName());
-					}
+				// within a transaction, writes can be held back until the commit
+				if (transactionId != null && executionContext != null && client.getConfig().isBufferTransactionalWrites() && isWrite(function.getMethod())) {
+					String basePath = getBasePath(input);
+					buffer((String) transactionId, basePath, function.getContext(), prepare(function, input, basePath));
+					// nothing has been sent yet, so there is no response to report back
+					return output.newInstance();
 				}
-				
-				Integer limit = input == null ? null : (Integer) input.get("limit");
-				Long offset = input == null ? null : (Long) input.get("offset");
-				Boolean totalCount = input == null ? null : (Boolean) input.get("totalCount");
-				String search = input == null ? null : (String) input.get("search");
-				String filter = input == null ? null : (String) input.get("filter");
-				List<String> orderBy = input == null ? null : (List<String>) input.get("orderBy");
-				
-				boolean queryBegun = false;
-				if (limit != null) {
-					if (queryBegun) {
-						target += "&";
-					}
-					else {
-						queryBegun = true;
-						target += "?";
-					}
-					target += "$top=" + limit;
-				}
-				if (offset != null) {
-					if (queryBegun) {
-						target += "&";
-					}
-					else {
-						queryBegun = true;
-						target += "?";
+				// updates outside of a transaction can be queued and merged with later updates of the same entity
+				ODataWriteBehind writeBehind = transactionId == null && "PATCH".equalsIgnoreCase(function.getMethod()) ? client.getWriteBehind() : null;
+				if (writeBehind != null) {
+					String basePath = getBasePath(input);
+					DefaultHTTPRequest request = prepare(function, input, basePath);
+					byte[] content = getContent(request.getContent());
+					if (content != null) {
+						writeBehind.enqueue(new ODataWriteBehind.Update(basePath, request.getTarget(), function.getContext(), content));
+						invalidateReplica(function.getContext());
+						return output.newInstance();
 					}
-					target += "$skip=" + offset;
 				}
-				if (totalCount != null) {
-					if (queryBegun) {
-						target += "&";
+				// reads that can be answered by the local replica never hit the server
+				if ("GET".equalsIgnoreCase(function.getMethod()) && transactionId == null) {
+					ComplexContent replicated = queryReplica(function, input, output);
+					if (replicated != null) {
+						return replicated;
 					}
-					else {
-						queryBegun = true;
-						target += "?";
-					}
-					target += "$count=" + totalCount;
-				}
-				if (search != null) {
-					if (queryBegun) {
-						target += "&";
-					}
-					else {
-						queryBegun = true;
-						target += "?";
-					}
-					target += "$search=" + URIUtils.encodeURL(search);
 				}
-				if (orderBy != null && !orderBy.isEmpty()) {
-					if (queryBegun) {
-						target += "&";
-					}
-					else {
-						queryBegun = true;
-						target += "?";
+				DefaultHTTPRequest request = prepare(function, input, getBasePath(input));
+				// only send the fields that differ from what the server has
+				if ("PATCH".equalsIgnoreCase(function.getMethod()) && client.getConfig().isDiffPatches()) {
+					DefaultHTTPRequest original = request;
+					request = diff(function, request, (String) transactionId);
+					// nothing changed, nothing to send
+					if (request == null) {
+						return output.newInstance();
 					}
-					target += "$orderby=";
-					boolean first = true;
-					for (String single : orderBy) {
-						if (first) {
-							first = false;
-						}
-						else {
-							target += ",";
+					if (request != original) {
+						try {
+							return execute(function, input, request, (String) transactionId, output);
 						}
-						target += URIUtils.encodeURL(single);
-					}
-				}
-				// if you didn't set an explicit filter, you might have used the filters array
-				if (filter == null && filters != null && !filters.isEmpty()) {
-					filter = buildFilter(filters);
-				}
-				if (filter != null && !filter.trim().isEmpty()) {
-					if (queryBegun) {
-						target += "&";
-					}
-					else {
-						queryBegun = true;
-						target += "?";
-					}
-					target += "$filter=" + URIUtils.encodeURL(filter);
-				}
-					
-				// if we are getting, we need to keep track of expansion
-				// we use the duplicate property for that
-				if ("GET".equalsIgnoreCase(function.getMethod())) {
-					String expand = null;
-					for (Element<?> child : outputChildren) {
-						String value = ValueUtils.getValue(DuplicateProperty.getInstance(), child.getProperties());
-						if (value != null && !value.trim().isEmpty()) {
-							if (expand == null) {
-								expand = value;
-							}
-							else {
-								expand += "," + value;
+						catch (HTTPException e) {
+							// the entity changed since we compared it, apply the full patch like we would without comparing
+							if (e.getCode() != 412) {
+								throw e;
 							}
+							request = original;
 						}
 					}
-					if (expand != null) {
-						if (queryBegun) {
-							target += "&";
+				}
+				// identical concurrent reads share a single upstream call and a single parsed result
+				// we don't do this within a transaction as the requests might rely on the transactional state
+				if ("GET".equalsIgnoreCase(function.getMethod()) && client.getConfig().isCoalesceReads() && transactionId == null) {
+					String key = function.getContext() + "." + function.getName() + ":" + getVariant(request.getTarget(), request) + ":" + client.getConfig().getSecurityType() + ":" + client.getConfig().getSecurityContext();
+					CompletableFuture<ComplexContent> future = new CompletableFuture<ComplexContent>();
+					CompletableFuture<ComplexContent> existing = client.getInflightReads().putIfAbsent(key, future);
+					if (existing != null) {
+						try {
+							return existing.get();
 						}
-						else {
-							queryBegun = true;
-							target += "?";
+						catch (ExecutionException e) {
+							throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
 						}
-						target += "$expand=" + URIUtils.encodeURL(expand);
 					}
-				}
-				
-				ModifiablePart part = null;
-				byte [] content = null;
-				if (functionInput != null) {
-					MarshallableBinding binding = null;
-					// currently only json
-					String contentType = "application/json";
-					
-					if ("application/json".equals(contentType)) {
-						binding = new JSONBinding(functionInput.getType(), charset);
-						// especially because we are using a PATCH method, we don't want to force this!
-						((JSONBinding) binding).setMarshalNonExistingRequiredFields(false);
-						// when we are using the odata.bind stuff, we need to be able to set raw values
-						((JSONBinding) binding).setAllowRaw(true);
-						// for PATCH services we want to explicitly set "null" values for optional fields if we mapped it
-						// TODO: might want to allow the user to set this explicitly for non-PATCH methods, e.g. in case of wrong method usage (PUT vs PATCH)
-						((JSONBinding) binding).setMarshalExplicitNullValues("PATCH".equalsIgnoreCase(function.getMethod()));
+					try {
+						ComplexContent result = execute(function, input, request, null, output);
+						future.complete(result);
+						return result;
 					}
-	
-					// update the foreign keys
-					if ("PUT".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod()) || "POST".equalsIgnoreCase(function.getMethod())) {
-						scanForForeignKeys(functionInput);
+					catch (Exception e) {
+						future.completeExceptionally(e);
+						throw e;
 					}
-					
-					ByteArrayOutputStream output = new ByteArrayOutputStream();
-					binding.marshal(output, functionInput);
-					content = output.toByteArray();
-					part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
-						new MimeHeader("Content-Length", Integer.toString(content.length)),
-						new MimeHeader("Content-Type", contentType)
-					);
-					((PlainMimeContentPart) part).setReopenable(true);
-				}
-				else {
-					part = new PlainMimeEmptyPart(null, 
-						new MimeHeader("Content-Length", "0")
-					);
-				}
-				part.setHeader(new MimeHeader("Accept", "application/json"));
-				part.setHeader(new MimeHeader("Host", definition.getHost()));
-				
-				// in theory we could use the odata etag we get back from the GET
-				// but in reality, we don't care (at this point)
-				// maybe in the future we'll annotate the instances etc, but for now we leave it like this
-				// the star is a special syntax indicating that we don't really care what the current version is, we just want to update it
-				if ("PUT".equalsIgnoreCase(function.getMethod()) || "DELETE".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod())) {
-					if (!client.getConfig().isIgnoreEtag()) {
-						part.setHeader(new MimeHeader("If-Match", "*"));
+					finally {
+						client.getInflightReads().remove(key, future);
 					}
 				}
-				
-				DefaultHTTPRequest request = new DefaultHTTPRequest(function.getMethod(), target, part);
-				
-				HTTPResponse response = run((String) transactionId, request);
-				HTTPUtils.validateResponse(response);
-				// we did a create and want to check for a header that indicates the id of
-				if (response.getCode() == 204 && "POST".equalsIgnoreCase(function.getMethod())) {
-					Header header = MimeUtils.getHeader("OData-EntityId", response.getContent().getHeaders());
-					if (header == null) {
-						header = MimeUtils.getHeader("Location", response.getContent().getHeaders());
-					}
-					if (header != null) {
-						// check if there is a field to put it in
-						Collection<Element<?>> allChildren = outputChildren;
-						Iterator<Element<?>> iterator = allChildren.iterator();
-						if (iterator.hasNext()) {
-							Element<?> field = iterator.next();
-							// this is actually the full URI to the item, we just want to extract the id
-							String fullHeaderValue = MimeUtils.getFullHeaderValue(header);
-							// for example: https://bebat-dev.crm4.dynamics.com/api/data/v9.2/nrq_registrations(358b0d2a-f3a6-ed11-aad1-6045bd957895)
-							String id = fullHeaderValue.replaceAll("^http.*/[^/]+\\(([^)]+)\\)$", "$1");
-							ComplexContent newInstance = function.getOutput().newInstance();
-							newInstance.set(field.getName(), id);
-							return newInstance;
+				return execute(function, input, request, (String) transactionId, output);
+			}
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Compares a patch with the current representation of the entity (from the key cache or fetched) and only keeps the fields that differ.
+	 * If the representation has an etag, the patch is only applied to that version.
+	 * Returns null if nothing changed according to a representation that was fetched just now, a cached one may be outdated.
+	 */
+	private DefaultHTTPRequest diff(Function function, DefaultHTTPRequest request, String transactionId) throws Exception {
+		byte[] content = getContent(request.getContent());
+		if (content == null) {
+			return request;
+		}
+		String path = request.getTarget().replaceAll("\\?.*$", "");
+		ODataKeyCache cache = client.getKeyCache(function.getContext());
+		String accept = getAccept(client.getConfig().getMetadataLevel());
+		byte[] current = cache == null ? null : cache.get(path, getVariant("", accept, null));
+		// a cached representation is only used if its etag lets the server reject the patch when someone else changed the entity
+		boolean cached = current != null && !client.getConfig().isIgnoreEtag() && ODataJson.getString(ODataJson.getFields(new String(current, getCharset())).get("\"@odata.etag\"")) != null;
+		if (!cached) {
+			current = null;
+		}
+		String etag = null;
+		if (current == null) {
+			ModifiablePart part = new PlainMimeEmptyPart(null, 
+				new MimeHeader("Content-Length", "0"),
+				new MimeHeader("Accept", accept),
+				new MimeHeader("Host", definition.getHost())
+			);
+			try {
+				HTTPResponse response = send(transactionId, new DefaultHTTPRequest("GET", path, part));
+				Header header = response.getContent() == null ? null : MimeUtils.getHeader("ETag", response.getContent().getHeaders());
+				etag = header == null ? null : MimeUtils.getFullHeaderValue(header);
+				current = getContent(response);
+			}
+			catch (HTTPException e) {
+				// if we can't read it, we send the patch as is and let the server decide
+				return request;
+			}
+		}
+		if (current == null) {
+			return request;
+		}
+		Charset charset = getCharset();
+		Map<String, String> existing = ODataJson.getFields(new String(current, charset));
+		Map<String, String> changed = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> field : ODataJson.getFields(new String(content, charset)).entrySet()) {
+			// values are compared as raw json, a different notation of the same value is simply sent along
+			if (!field.getValue().equals(existing.get(field.getKey()))) {
+				changed.put(field.getKey(), field.getValue());
+			}
+		}
+		// nothing changed so nothing is sent, even if the cached representation turns out to be stale the etag will catch it on the next write
+		if (changed.isEmpty()) {
+			return null;
+		}
+		byte[] bytes = ODataJson.toObject(changed).getBytes(charset);
+		ModifiablePart part = new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+			new MimeHeader("Content-Length", Integer.toString(bytes.length)),
+			new MimeHeader("Content-Type", "application/json")
+		);
+		((PlainMimeContentPart) part).setReopenable(true);
+		for (Header header : request.getContent().getHeaders()) {
+			if (!"Content-Length".equalsIgnoreCase(header.getName()) && !"Content-Type".equalsIgnoreCase(header.getName())) {
+				part.setHeader(header);
+			}
+		}
+		// the etag is also part of the representation
+		if (etag == null) {
+			etag = ODataJson.getString(existing.get("\"@odata.etag\""));
+		}
+		if (etag != null && !client.getConfig().isIgnoreEtag()) {
+			part.setHeader(new MimeHeader("If-Match", etag));
+		}
+		return new DefaultHTTPRequest("PATCH", request.getTarget(), part);
+	}
+	
+	private void evict(String entitySet, HTTPRequest request) {
+		ODataKeyCache cache = client.getKeyCache(entitySet);
+		if (cache != null) {
+			cache.evict(request.getTarget().replaceAll("\\?.*$", ""));
+		}
+		invalidateReplica(entitySet);
+	}
+	
+	// our own changes should be visible to our next reads, until a refresh picks them up we read from the server
+	private void invalidateReplica(String entitySet) {
+		ODataReplica replica = client.getReplica(entitySet);
+		if (replica != null) {
+			replica.invalidate();
+		}
+	}
+	
+	private static boolean isWrite(String method) {
+		return "POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method) || "PATCH".equalsIgnoreCase(method) || "DELETE".equalsIgnoreCase(method);
+	}
+	
+	// there is one buffer per client in each transaction
+	private void buffer(String transactionId, String basePath, String entitySet, DefaultHTTPRequest request) {
+		TransactionContext transactionContext = executionContext.getTransactionContext();
+		ODataWriteBuffer buffer;
+		synchronized(transactionContext) {
+			buffer = (ODataWriteBuffer) transactionContext.get(transactionId, ODataWriteBuffer.getId(client));
+			if (buffer == null) {
+				buffer = new ODataWriteBuffer(client, executionContext);
+				transactionContext.add(transactionId, buffer);
+			}
+		}
+		buffer.add(basePath, entitySet, request);
+	}
+	
+	/**
+	 * Sends the writes that are buffered in the transaction, if the server rejects them an exception is thrown and the transaction can still be rolled back.
+	 */
+	public void prepare(String transactionId) {
+		ODataWriteBuffer buffer = transactionId == null ? null : (ODataWriteBuffer) executionContext.getTransactionContext().get(transactionId, ODataWriteBuffer.getId(client));
+		if (buffer != null) {
+			buffer.prepare();
+		}
+	}
+	
+	/**
+	 * Sends the buffered writes of a transaction as a single changeset, if any of them fails the server rolls back the whole changeset.
+	 */
+	public void flush(String basePath, List<String> entitySets, List<DefaultHTTPRequest> requests) {
+		try {
+			ODataBatch batch = new ODataBatch(definition.getScheme(), definition.getHost());
+			batch.addChangeset(requests);
+			List<HTTPResponse> responses;
+			try {
+				// the transactional http client might already be closed at this point
+				responses = batch.parse(run(null, new DefaultHTTPRequest("POST", basePath + "/$batch", batch.toPart())));
+			}
+			catch (Exception e) {
+				// we don't know what the server applied, so we can't trust anything we have cached
+				for (int i = 0; i < requests.size(); i++) {
+					evict(entitySets.get(i), requests.get(i));
+				}
+				throw e;
+			}
+			// only what was applied changed on the server
+			for (int i = 0; i < requests.size(); i++) {
+				if (responses.get(i).getCode() >= 200 && responses.get(i).getCode() < 300) {
+					evict(entitySets.get(i), requests.get(i));
+				}
+			}
+			for (HTTPResponse response : responses) {
+				if (response.getCode() < 200 || response.getCode() >= 300) {
+					throw new HTTPException(response.getCode(), "The buffered changeset was rejected: " + getContentAsString(response));
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Sends queued updates as independent requests in a single $batch, the responses are in the same order as the updates.
+	 * If the server stopped processing the batch halfway, there are fewer responses than updates.
+	 */
+	public List<HTTPResponse> sendUpdates(List<ODataWriteBehind.Update> updates) throws Exception {
+		ODataBatch batch = new ODataBatch(definition.getScheme(), definition.getHost());
+		for (ODataWriteBehind.Update update : updates) {
+			ModifiablePart part = new PlainMimeContentPart(null, IOUtils.wrap(update.getContent(), true),
+				new MimeHeader("Content-Length", Integer.toString(update.getContent().length)),
+				new MimeHeader("Content-Type", "application/json"),
+				new MimeHeader("Accept", "application/json"),
+				new MimeHeader("Host", definition.getHost())
+			);
+			((PlainMimeContentPart) part).setReopenable(true);
+			if (!client.getConfig().isIgnoreEtag()) {
+				part.setHeader(new MimeHeader("If-Match", "*"));
+			}
+			// independent requests, one failing update should not block the others
+			batch.addRequest(new DefaultHTTPRequest("PATCH", update.getTarget(), part));
+		}
+		try {
+			// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part1-protocol.html#sec_Preferencecontinueonerrorodatacontinueonerror
+			ModifiablePart part = batch.toPart();
+			part.setHeader(new MimeHeader("Prefer", "odata.continue-on-error"));
+			// the updates are grouped by base path, if the server stops anyway we get the responses up to that point
+			return batch.parse(run(null, new DefaultHTTPRequest("POST", updates.get(0).getBasePath() + "/$batch", part)), true);
+		}
+		// evicted once the updates are applied so a concurrent read can not put back the old version
+		finally {
+			for (ODataWriteBehind.Update update : updates) {
+				ODataKeyCache cache = client.getKeyCache(update.getEntitySet());
+				if (cache != null) {
+					cache.evict(update.getTarget());
+				}
+				invalidateReplica(update.getEntitySet());
+			}
+		}
+	}
+	
+	/**
+	 * Reads the full entity set behind a list function, following the next links of the server.
+	 * This is used to (re)load a replica, the entities are passed to the loader page by page.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void readAll(Function function, ODataReplica.Loader loader) {
+		try {
+			ComplexType entityType = null;
+			for (Element<?> element : TypeUtils.getAllChildren(function.getOutput())) {
+				Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+				if (element.getType() instanceof ComplexType && maxOccurs != null && maxOccurs != 1) {
+					entityType = (ComplexType) element.getType();
+				}
+			}
+			if (entityType == null) {
+				throw new IllegalArgumentException("The function " + function.getContext() + "." + function.getName() + " does not return a list");
+			}
+			Structure wrapper = new Structure();
+			wrapper.setName("values");
+			wrapper.add(new ComplexElementImpl("value", entityType, wrapper, 
+				new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+				new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+			wrapper.add(new SimpleElementImpl<String>("nextLink", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), wrapper,
+				new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+				new ValueImpl<String>(AliasProperty.getInstance(), "@odata.nextLink")));
+			JSONBinding binding = new JSONBinding(wrapper, getCharset());
+			binding.setIgnoreUnknownElements(true);
+			
+			String target = prepare(function, null, getBasePath(null)).getTarget();
+			boolean firstPage = true;
+			while (target != null) {
+				ModifiablePart part = new PlainMimeEmptyPart(null, 
+					new MimeHeader("Content-Length", "0"),
+					new MimeHeader("Accept", getAccept(ODataMetadataLevel.NONE)),
+					new MimeHeader("Host", definition.getHost())
+				);
+				HTTPResponse response = run(null, new DefaultHTTPRequest("GET", target, part));
+				target = null;
+				ReadableContainer<ByteBuffer> readable = response.getContent() instanceof ContentPart ? ((ContentPart) response.getContent()).getReadable() : null;
+				if (readable != null) {
+					try {
+						ComplexContent unmarshalled = binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
+						int size = 0;
+						if (unmarshalled != null && unmarshalled.get("value") instanceof List) {
+							for (Object single : (List) unmarshalled.get("value")) {
+								if (single instanceof ComplexContent) {
+									loader.add((ComplexContent) single);
+									size++;
+								}
+							}
+						}
+						String nextLink = unmarshalled == null ? null : (String) unmarshalled.get("nextLink");
+						if (nextLink != null && !nextLink.trim().isEmpty()) {
+							target = getLinkTarget(nextLink);
+							// the first page tells us how much the server is willing to send at once
+							if (firstPage) {
+								loader.setPageSize(size);
+							}
 						}
+						firstPage = false;
+					}
+					finally {
+						readable.close();
+					}
+				}
+			}
+			loader.commit();
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Answers a read from the local replica of the entity set.
+	 * Only simple equality filters on indexed fields are supported, anything else (search, sorting, expansions...) returns null and goes to the server.
+	 * The replica has no next links to offer, so a list that would not fit in a single page of the server also goes to the server.
+	 */
+	@SuppressWarnings("unchecked")
+	private ComplexContent queryReplica(Function function, ComplexContent input, ComplexType output) {
+		ODataReplica replica = client.getReplica(function.getContext());
+		// replicas are not aware of path parameters (e.g. a tenant in the url)
+		if (replica == null || !replica.isLoaded() || (client.getPathParameters() != null && !client.getPathParameters().isEmpty())) {
+			return null;
+		}
+		List<String> orderBy = (List<String>) getValue(input, "orderBy");
+		Boolean totalCount = (Boolean) getValue(input, "totalCount");
+		if (getValue(input, "search") != null || getValue(input, "filter") != null || getValue(input, "expand") != null || (orderBy != null && !orderBy.isEmpty()) || (totalCount != null && totalCount)) {
+			return null;
+		}
+		// the replica only holds the entities themselves, not the relations the function expands by default
+		if (client.getUrlTemplate(function).getExpand() != null) {
+			return null;
+		}
+		Map<String, List<?>> conditions = new HashMap<String, List<?>>();
+		List<Filter> filters = (List<Filter>) getValue(input, "filters");
+		if (filters != null) {
+			for (Object object : filters) {
+				Filter filter = unwrap(object);
+				if (filter == null || filter.getKey() == null || !"=".equals(filter.getOperator()) || filter.isOr() || filter.isCaseInsensitive() || filter.getValues() == null || filter.getValues().isEmpty() || !replica.isIndexed(filter.getKey())) {
+					return null;
+				}
+				// multiple filters on the same field are combined with "and"
+				if (conditions.containsKey(filter.getKey())) {
+					return null;
+				}
+				conditions.put(filter.getKey(), filter.getValues());
+			}
+		}
+		Element<?> primaryKey = getPrimaryKey(function.getInput());
+		for (Element<?> element : TypeUtils.getAllChildren(output)) {
+			if (!(element.getType() instanceof ComplexType)) {
+				continue;
+			}
+			if (!replica.getEntityType().equals(element.getType())) {
+				return null;
+			}
+			Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+			if (maxOccurs != null && maxOccurs != 1) {
+				Long offset = (Long) getValue(input, "offset");
+				Integer limit = (Integer) getValue(input, "limit");
+				Integer pageSize = getPageSize(input, replica);
+				// we ask for one more than fits in a page to know whether the server would have paged
+				List<ComplexContent> result = replica.query(conditions, offset == null ? null : offset.intValue(), pageSize == null || (limit != null && limit <= pageSize) ? limit : Integer.valueOf(pageSize + 1));
+				if (result == null || (pageSize != null && result.size() > pageSize)) {
+					return null;
+				}
+				ComplexContent instance = output.newInstance();
+				instance.set(element.getName(), result);
+				return instance;
+			}
+			else if (primaryKey != null && conditions.isEmpty()) {
+				Object key = getValue(input, primaryKey.getName());
+				if (key == null) {
+					return null;
+				}
+				// the key in the entity has the same name as in the input
+				conditions.put(primaryKey.getName(), Arrays.asList(key));
+				List<ComplexContent> result = replica.query(conditions, null, 1);
+				// a missing entity might have been created after the last refresh
+				if (result == null || result.isEmpty()) {
+					return null;
+				}
+				ComplexContent instance = output.newInstance();
+				instance.set(element.getName(), result.get(0));
+				return instance;
+			}
+			return null;
+		}
+		return null;
+	}
+	
+	// the smallest of the page size we ask for and the one the server used while loading the replica
+	private Integer getPageSize(ComplexContent input, ODataReplica replica) {
+		Integer maxPageSize = client.getConfig().getMaxPageSize();
+		Object override = getValue(input, "maxPageSize");
+		if (override instanceof Integer) {
+			maxPageSize = (Integer) override;
+		}
+		Integer serverPageSize = replica.getPageSize();
+		if (maxPageSize == null) {
+			return serverPageSize;
+		}
+		return serverPageSize == null ? maxPageSize : Math.min(maxPageSize, serverPageSize);
+	}
+	
+	private ComplexContent execute(Function function, ComplexContent input, DefaultHTTPRequest request, String transactionId, ComplexType output) throws Exception {
+		// list queries with large "in" filters can exceed the url limit of the server (e.g. dynamics stops at about 32kb)
+		int maxUrlLength = client.getConfig().getMaxUrlLength() == null ? 8192 : client.getConfig().getMaxUrlLength();
+		if ("GET".equalsIgnoreCase(function.getMethod()) && function.getInput().get("limit") != null && request.getTarget().length() > maxUrlLength) {
+			if (client.getConfig().isUseQueryEndpoint()) {
+				request = toQueryRequest(request);
+			}
+			else {
+				ComplexContent chunked = runChunked(function, input, request, transactionId, output, maxUrlLength);
+				if (chunked != null) {
+					return chunked;
+				}
+			}
+		}
+		// single entity operations can go through the key cache
+		ODataKeyCache cache = getPrimaryKey(function.getInput()) == null ? null : client.getKeyCache(function.getContext());
+		String path = request.getTarget().replaceAll("\\?.*$", "");
+		String query = getVariant(request.getTarget().substring(path.length()), request);
+		if (cache != null && "GET".equalsIgnoreCase(function.getMethod())) {
+			byte[] cached = cache.get(path, query);
+			if (cached != null) {
+				return process(function, newResponse(cached), output);
+			}
+		}
+		// reads by key can be combined with other reads against the same entity set
+		if ("GET".equalsIgnoreCase(function.getMethod()) && client.getConfig().getKeyBatchWindow() != null && transactionId == null) {
+			ComplexContent batched = lookupInBatch(function, request, output);
+			if (batched != null) {
+				return batched;
+			}
+		}
+		ODataTimeline timeline = new ODataTimeline(request.getMethod(), request.getTarget());
+		try {
+			HTTPResponse response;
+			try {
+				response = send(transactionId, request, timeline);
+			}
+			finally {
+				if (isWrite(function.getMethod())) {
+					invalidateReplica(function.getContext());
+				}
+			}
+			if (cache != null) {
+				if ("GET".equalsIgnoreCase(function.getMethod())) {
+					byte[] content = getContent(response);
+					if (content != null) {
+						cache.put(path, query, content);
+						response = newResponse(content);
+					}
+				}
+				// if the server sent back the updated entity, we can use it, otherwise we just evict
+				else if (response.getCode() == 200 && !"DELETE".equalsIgnoreCase(function.getMethod())) {
+					byte[] content = getContent(response);
+					if (content != null) {
+						// a read by key does not send preferences, the representation only depends on what we accept
+						cache.put(path, getVariant("", getHeaderValue(request, "Accept"), null), content);
+						response = newResponse(content);
+					}
+					else {
+						cache.evict(path);
+					}
+				}
+				else {
+					cache.evict(path);
+				}
+				timeline.mark("cache");
+			}
+			ComplexContent result = process(function, response, output);
+			timeline.mark("unmarshal");
+			return result;
+		}
+		finally {
+			report(timeline);
+		}
+	}
+
+	/**
+	 * Splits the largest "in" filter over multiple requests that each fit within the url limit and merges the results.
+	 * Returns null if the query can not be split without changing its meaning, for example when paging with an offset or sorting.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private ComplexContent runChunked(final Function function, ComplexContent input, DefaultHTTPRequest request, final String transactionId, final ComplexType output, int maxUrlLength) throws Exception {
+		List<Filter> filters = (List<Filter>) getValue(input, "filters");
+		List<String> orderBy = (List<String>) getValue(input, "orderBy");
+		Boolean totalCount = (Boolean) getValue(input, "totalCount");
+		if (filters == null || getValue(input, "filter") != null || getValue(input, "offset") != null || (orderBy != null && !orderBy.isEmpty()) || (totalCount != null && totalCount)) {
+			return null;
+		}
+		// a multi-valued "=" becomes an "in", splitting its values is the same as combining the results with "or"
+		int index = -1;
+		Filter largest = null;
+		for (int i = 0; i < filters.size(); i++) {
+			Filter filter = unwrap(filters.get(i));
+			if (filter != null && filter.getKey() != null && "=".equals(filter.getOperator()) && filter.getValues() != null && filter.getValues().size() >= 2) {
+				if (largest == null || filter.getValues().size() > largest.getValues().size()) {
+					largest = filter;
+					index = i;
+				}
+			}
+		}
+		if (largest == null) {
+			return null;
+		}
+		// estimate how much each value adds to the url
+		int [] costs = new int[largest.getValues().size()];
+		int total = 0, highest = 0;
+		for (int i = 0; i < costs.length; i++) {
+			Object single = largest.getValues().get(i);
+			// formatted the same way as in the filter itself, dates in a list are prefixed with a space
+			costs[i] = URIUtils.encodeURL((single instanceof Date ? " " : "") + ODataFilterTemplate.format(single) + ",").length() + (largest.isCaseInsensitive() ? 20 : 0);
+			total += costs[i];
+			highest = Math.max(highest, costs[i]);
+		}
+		int budget = maxUrlLength - (request.getTarget().length() - total);
+		if (budget < highest) {
+			return null;
+		}
+		List<List<Object>> chunks = new ArrayList<List<Object>>();
+		List<Object> current = new ArrayList<Object>();
+		int used = 0;
+		for (int i = 0; i < costs.length; i++) {
+			if (used + costs[i] > budget && !current.isEmpty()) {
+				chunks.add(current);
+				current = new ArrayList<Object>();
+				used = 0;
+			}
+			current.add(largest.getValues().get(i));
+			used += costs[i];
+		}
+		chunks.add(current);
+		
+		final List<DefaultHTTPRequest> requests = new ArrayList<DefaultHTTPRequest>();
+		final List<ComplexContent> inputs = new ArrayList<ComplexContent>();
+		for (List<Object> chunk : chunks) {
+			Filter filter = new Filter();
+			filter.setKey(largest.getKey());
+			filter.setOperator(largest.getOperator());
+			filter.setOr(largest.isOr());
+			filter.setCaseInsensitive(largest.isCaseInsensitive());
+			filter.setValues(chunk);
+			List<Filter> chunkFilters = new ArrayList<Filter>(filters);
+			chunkFilters.set(index, filter);
+			// we don't want to modify the original input
+			ComplexContent chunkInput = input.getType().newInstance();
+			for (Element<?> element : TypeUtils.getAllChildren(input.getType())) {
+				chunkInput.set(element.getName(), input.get(element.getName()));
+			}
+			chunkInput.set("filters", chunkFilters);
+			inputs.add(chunkInput);
+			requests.add(prepare(function, chunkInput, getBasePath(input)));
+		}
+		List<Callable<ComplexContent>> tasks = new ArrayList<Callable<ComplexContent>>();
+		for (int i = 0; i < requests.size(); i++) {
+			final int chunkIndex = i;
+			tasks.add(new Callable<ComplexContent>() {
+				@Override
+				public ComplexContent call() throws Exception {
+					if (transactionId != null) {
+						return execute(function, inputs.get(chunkIndex), requests.get(chunkIndex), transactionId, output);
+					}
+					// the chunks count towards the limit of parallel requests for this client
+					Semaphore permits = client.getRequestPermits();
+					permits.acquire();
+					try {
+						return execute(function, inputs.get(chunkIndex), requests.get(chunkIndex), null, output);
+					}
+					finally {
+						permits.release();
+					}
+				}
+			});
+		}
+		// within a transaction we stay on the current thread
+		Integer concurrency = client.getConfig().getRequestConcurrency();
+		List<ComplexContent> results = fanOut(tasks, transactionId != null || concurrency == null ? 1 : concurrency);
+		
+		// merge the lists, an entity can match multiple chunks if there are other "or" conditions
+		Element<?> listElement = null;
+		for (Element<?> element : TypeUtils.getAllChildren(output)) {
+			Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+			if (element.getType() instanceof ComplexType && maxOccurs != null && maxOccurs != 1) {
+				listElement = element;
+			}
+		}
+		if (listElement == null) {
+			return results.isEmpty() ? null : results.get(0);
+		}
+		Element<?> keyElement = getPrimaryKey((ComplexType) listElement.getType());
+		Integer limit = (Integer) getValue(input, "limit");
+		Set<Object> keys = new HashSet<Object>();
+		List<Object> merged = new ArrayList<Object>();
+		for (ComplexContent result : results) {
+			Object list = result == null ? null : result.get(listElement.getName());
+			if (list instanceof Iterable) {
+				for (Object single : (Iterable) list) {
+					Object key = keyElement != null && single instanceof ComplexContent ? ((ComplexContent) single).get(keyElement.getName()) : null;
+					if (key == null || keys.add(key)) {
+						merged.add(single);
+					}
+				}
+			}
+		}
+		if (limit != null && merged.size() > limit) {
+			merged = merged.subList(0, limit);
+		}
+		ComplexContent result = output.newInstance();
+		result.set(listElement.getName(), merged);
+		return result;
+	}
+	
+	// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part1-protocol.html#sec_PassingQueryOptionsintheRequestBody
+	private DefaultHTTPRequest toQueryRequest(DefaultHTTPRequest request) {
+		String path = request.getTarget().replaceAll("\\?.*$", "");
+		String query = request.getTarget().substring(path.length());
+		// the query options keep their url encoding
+		byte[] content = (query.isEmpty() ? "" : query.substring(1)).getBytes(getCharset());
+		PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Content-Length", Integer.toString(content.length)),
+			new MimeHeader("Content-Type", "text/plain")
+		);
+		part.setReopenable(true);
+		for (Header header : request.getContent().getHeaders()) {
+			if (!"Content-Length".equalsIgnoreCase(header.getName()) && !"Content-Type".equalsIgnoreCase(header.getName())) {
+				part.setHeader(header);
+			}
+		}
+		return new DefaultHTTPRequest("POST", path + "/$query", part);
+	}
+	
+	// beans that are passed in can be wrapped
+	@SuppressWarnings("unchecked")
+	private static <T> T unwrap(Object object) {
+		if (object instanceof MaskedContent) {
+			object = ((MaskedContent) object).getOriginal();
+		}
+		if (object instanceof BeanInstance) {
+			object = ((BeanInstance<?>) object).getUnwrapped();
+		}
+		return (T) object;
+	}
+
+	/**
+	 * Key lookups that arrive within the configured window are resolved with a single query: GET /accounts?$filter=accountid in (...)
+	 * The first lookup waits for the window to pass and then sends the query for everyone, if the batch is full before that it is sent immediately.
+	 * If no other lookups are in progress there is no one to wait for, the first lookup is sent immediately.
+	 * The result can be paged by the server, the next links are followed until every key is found or there are no more pages.
+	 * Returns null if the request can not be batched.
+	 */
+	@SuppressWarnings("rawtypes")
+	private ComplexContent lookupInBatch(Function function, DefaultHTTPRequest request, ComplexType output) throws Exception {
+		String path = request.getTarget().replaceAll("\\?.*$", "");
+		String query = request.getTarget().substring(path.length());
+		int index = path.lastIndexOf('(');
+		// we only batch the default key syntax without additional filtering
+		if (index < 0 || !path.endsWith(")") || query.contains("$filter=")) {
+			return null;
+		}
+		// composite keys (e.g. (a=1,b=2)) can not be combined in a single "in"
+		if (client.getUrlTemplate(function).getKeys().size() != 1) {
+			return null;
+		}
+		Element<?> resultElement = null;
+		for (Element<?> element : TypeUtils.getAllChildren(function.getOutput())) {
+			if (element.getType() instanceof ComplexType) {
+				resultElement = element;
+			}
+		}
+		if (resultElement == null) {
+			return null;
+		}
+		ComplexType resultType = (ComplexType) resultElement.getType();
+		Element<?> keyElement = getPrimaryKey(resultType);
+		if (keyElement == null) {
+			keyElement = resultType.get(getPrimaryKey(function.getInput()).getName());
+		}
+		if (keyElement == null) {
+			return null;
+		}
+		String collection = path.substring(0, index);
+		String key = path.substring(index + 1, path.length() - 1);
+		// only lookups that negotiate the same representation can share a response
+		String accept = getHeaderValue(request, "Accept");
+		String prefer = getHeaderValue(request, "Prefer");
+		String group = function.getContext() + "." + function.getName() + ":" + collection + getVariant(query, accept, prefer);
+		int maxSize = client.getConfig().getKeyBatchSize() == null ? 50 : client.getConfig().getKeyBatchSize();
+		
+		Map<String, ODataKeyBatch> batches = client.getKeyBatches();
+		Map<String, Integer> active = client.getActiveKeyLookups();
+		ODataKeyBatch batch;
+		CompletableFuture<ComplexContent> future;
+		boolean leader = false, full = false, concurrent;
+		synchronized(batches) {
+			Integer current = active.get(group);
+			concurrent = current != null && current > 0;
+			active.put(group, current == null ? 1 : current + 1);
+			batch = batches.get(group);
+			if (batch == null) {
+				batch = new ODataKeyBatch();
+				batches.put(group, batch);
+				leader = true;
+			}
+			future = batch.add(key);
+			if (batch.size() >= maxSize) {
+				batches.remove(group);
+				full = true;
+			}
+		}
+		try {
+			if (leader || full) {
+				if (!full) {
+					// only wait if there is someone to wait for
+					if (concurrent) {
+						Thread.sleep(client.getConfig().getKeyBatchWindow());
+					}
+					synchronized(batches) {
+						if (batches.get(group) == batch) {
+							batches.remove(group);
+						}
+					}
+				}
+				Map<String, CompletableFuture<ComplexContent>> lookups = batch.close();
+				// if it is already closed, someone else filled it up and sent it
+				if (lookups != null) {
+					try {
+						// the keys are taken from the path as is (encoded), the filter uses the decoded literals and is encoded once as a whole
+						Map<String, String> literals = new HashMap<String, String>();
+						String filter = "";
+						for (String single : lookups.keySet()) {
+							String literal = URIUtils.decodeURL(single);
+							literals.put(single, literal);
+							filter += (filter.isEmpty() ? "" : ",") + literal;
+						}
+						filter = keyElement.getName() + (lookups.size() == 1 ? " eq " + filter : " in (" + filter + ")");
+						// a page size meant for a single read could split the combined result over multiple pages
+						String batchPrefer = withoutMaxPageSize(prefer);
+						Structure wrapper = new Structure();
+						wrapper.setName("values");
+						wrapper.add(new ComplexElementImpl("value", resultType, wrapper, 
+							new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+							new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+						wrapper.add(new SimpleElementImpl<String>("nextLink", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), wrapper,
+							new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+							new ValueImpl<String>(AliasProperty.getInstance(), "@odata.nextLink")));
+						JSONBinding binding = new JSONBinding(wrapper, getCharset());
+						binding.setIgnoreUnknownElements(true);
+						// string keys are matched exactly, they may only differ in case
+						Map<String, ComplexContent> found = new HashMap<String, ComplexContent>();
+						// unquoted keys like guids are case insensitive, the server might not return them in the same case
+						Map<String, ComplexContent> foundIgnoreCase = new HashMap<String, ComplexContent>();
+						Map<String, ComplexContent> results = new HashMap<String, ComplexContent>();
+						// only if we have seen the last page can we conclude that a key does not exist
+						boolean complete = false;
+						String target = collection + (query.isEmpty() ? "?" : query + "&") + "$filter=" + URIUtils.encodeURL(filter);
+						while (target != null) {
+							ModifiablePart part = new PlainMimeEmptyPart(null, 
+								new MimeHeader("Content-Length", "0"),
+								new MimeHeader("Accept", accept == null ? getAccept(client.getConfig().getMetadataLevel()) : accept),
+								new MimeHeader("Host", definition.getHost())
+							);
+							if (batchPrefer != null) {
+								part.setHeader(new MimeHeader("Prefer", batchPrefer));
+							}
+							HTTPResponse response = run(null, new DefaultHTTPRequest("GET", target, part));
+							target = null;
+							ReadableContainer<ByteBuffer> readable = response.getContent() instanceof ContentPart ? ((ContentPart) response.getContent()).getReadable() : null;
+							if (readable == null) {
+								break;
+							}
+							try {
+								ComplexContent unmarshalled = binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
+								if (unmarshalled != null && unmarshalled.get("value") instanceof List) {
+									for (Object single : (List) unmarshalled.get("value")) {
+										if (single instanceof ComplexContent) {
+											Object value = ((ComplexContent) single).get(keyElement.getName());
+											if (value != null) {
+												String marshalled = ((Marshallable) keyElement.getType()).marshal(value, keyElement.getProperties());
+												found.put(marshalled, (ComplexContent) single);
+												foundIgnoreCase.put(marshalled.toLowerCase(), (ComplexContent) single);
+											}
+										}
+									}
+								}
+								String nextLink = unmarshalled == null ? null : (String) unmarshalled.get("nextLink");
+								if (nextLink != null && !nextLink.trim().isEmpty()) {
+									target = getLinkTarget(nextLink);
+								}
+								else {
+									complete = true;
+								}
+							}
+							finally {
+								readable.close();
+							}
+							for (Map.Entry<String, String> literal : literals.entrySet()) {
+								if (!results.containsKey(literal.getKey())) {
+									ComplexContent single;
+									if (literal.getValue().startsWith("'") && literal.getValue().endsWith("'") && literal.getValue().length() >= 2) {
+										single = found.get(literal.getValue().substring(1, literal.getValue().length() - 1).replace("''", "'"));
+									}
+									else {
+										single = foundIgnoreCase.get(literal.getValue().toLowerCase());
+									}
+									if (single != null) {
+										results.put(literal.getKey(), single);
+									}
+								}
+							}
+							// no need to read the other pages if we have found everything
+							if (results.size() == lookups.size()) {
+								break;
+							}
+						}
+						ODataKeyCache cache = client.getKeyCache(function.getContext());
+						String variant = getVariant(query, accept, prefer);
+						for (Map.Entry<String, CompletableFuture<ComplexContent>> lookup : lookups.entrySet()) {
+							ComplexContent single = results.get(lookup.getKey());
+							// same behavior as a read of a key that does not exist
+							if (single == null && complete) {
+								lookup.getValue().completeExceptionally(new HTTPException(404));
+							}
+							else if (single == null) {
+								lookup.getValue().completeExceptionally(new IllegalStateException("The combined lookup did not return the complete result set for: " + lookup.getKey()));
+							}
+							else {
+								// a later read of this key can be served from the cache, as if it was read on its own
+								if (cache != null) {
+									ByteArrayOutputStream content = new ByteArrayOutputStream();
+									new JSONBinding(resultType, getCharset()).marshal(content, single);
+									cache.put(collection + "(" + lookup.getKey() + ")", variant, content.toByteArray());
+								}
+								ComplexContent result = output.newInstance();
+								result.set(resultElement.getName(), single);
+								lookup.getValue().complete(result);
+							}
+						}
+					}
+					catch (Exception e) {
+						for (CompletableFuture<ComplexContent> lookup : lookups.values()) {
+							lookup.completeExceptionally(e);
+						}
+					}
+				}
+			}
+			try {
+				return future.get();
+			}
+			catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		finally {
+			synchronized(batches) {
+				Integer current = active.get(group);
+				if (current == null || current <= 1) {
+					active.remove(group);
+				}
+				else {
+					active.put(group, current - 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the request for a single entity operation, the base path should already have its path parameters filled in
+	 */
+	@SuppressWarnings("unchecked")
+	private DefaultHTTPRequest prepare(Function function, ComplexContent input, String target) throws IOException, FormatException {
+		Charset charset = getCharset();
+		ODataUrlTemplate template = client.getUrlTemplate(function);
+		StringBuilder builder = new StringBuilder(getTarget(function, input, target));
+		ComplexType usedType = template.getUsedType();
+		
+		// if we have filters, check if you are filtering on the parent ids, we also need to add them then!
+		List<Filter> filters = (List<Filter>) getValue(input, "filters");
+		if (filters != null && !filters.isEmpty()) {
+			// don't modify the original list
+			filters = new ArrayList<Filter>(filters);
+			Iterator<Filter> iterator = filters.iterator();
+			while (iterator.hasNext()) {
+				Object filterObject = iterator.next();
+				if (filterObject instanceof MaskedContent) {
+					filterObject = ((MaskedContent) filterObject).getOriginal();
+				}
+				if (filterObject instanceof BeanInstance) {
+					filterObject = ((BeanInstance<?>) filterObject).getUnwrapped();
+				}
+				Filter filter = (Filter) filterObject;
+				int indexOf = filter.getKey().indexOf("@odata.parent.id");
+				if (indexOf > 0) {
+					if (filter.getValues() != null && !filter.getValues().isEmpty()) {
+						String entitySetName = filter.getKey().substring(0, indexOf);
+						for (Object singleParentValue : filter.getValues()) {
+							if (singleParentValue != null) {
+								// keys can be given as segments
+								// in sharepoint the segment way works /sites/id but the default /sites(id) does not so we use this as default for now
+								// in the future we may want to offer configuration to tweak this behavior because it is hard to rewrite this into the other syntax
+								// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
+								Element<?> filterElement = usedType == null ? null : usedType.get(filter.getKey());
+								String stringified = null;
+								if (filterElement == null) {
+									stringified = ConverterFactory.getInstance().getConverter().convert(singleParentValue, String.class);
+								}
+								else {
+									stringified = ((Marshallable) filterElement.getType()).marshal(singleParentValue, filterElement.getProperties());
+								}
+								if (client.getConfig().isKeyAsSegment()) {
+									// keys can be given as segments
+									// in sharepoint the segment way works /sites/id but the default /sites(id) does not
+									// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_KeyasSegmentConvention
+									builder.append('/').append(entitySetName).append('/').append(stringified);
+								}
+								else {
+									builder.append('/').append(entitySetName).append('(').append(stringified).append(')');
+								}
+							}
+						}	
+					}
+					iterator.remove();
+				}
+			}
+		}
+		
+		// the context is set to the entity set name
+		builder.append(template.getEntitySetSegment());
+		// if we have a primary key field, we are likely doing a specific get or an update/delete
+		// either way we have to pass it in the URL
+		for (ODataUrlTemplate.Key key : template.getKeys()) {
+			Element<?> element = key.getElement();
+			builder.append(key.isQuoted() ? "('" : "(")
+				.append(((Marshallable) element.getType()).marshal(input.get(element.getName()), element.getProperties()))
+				.append(key.isQuoted() ? "')" : ")");
+		}
+		ComplexContent functionInput = template.getInputName() == null || input == null ? null : (ComplexContent) input.get(template.getInputName());
+		
+		Integer limit = (Integer) getValue(input, "limit");
+		Long offset = (Long) getValue(input, "offset");
+		Boolean totalCount = (Boolean) getValue(input, "totalCount");
+		String search = (String) getValue(input, "search");
+		String filter = (String) getValue(input, "filter");
+		List<String> orderBy = (List<String>) getValue(input, "orderBy");
+		
+		int queryStart = builder.length();
+		if (limit != null) {
+			startOption(builder, queryStart).append("$top=").append(limit);
+		}
+		if (offset != null) {
+			startOption(builder, queryStart).append("$skip=").append(offset);
+		}
+		if (totalCount != null) {
+			startOption(builder, queryStart).append("$count=").append(totalCount);
+		}
+		if (search != null) {
+			startOption(builder, queryStart).append("$search=").append(URIUtils.encodeURL(search));
+		}
+		if (orderBy != null && !orderBy.isEmpty()) {
+			startOption(builder, queryStart).append("$orderby=");
+			boolean first = true;
+			for (String single : orderBy) {
+				if (first) {
+					first = false;
+				}
+				else {
+					builder.append(',');
+				}
+				builder.append(URIUtils.encodeURL(single));
+			}
+		}
+		// if you didn't set an explicit filter, you might have used the filters array
+		Map<String, String> aliases = null;
+		if (filter == null && filters != null && !filters.isEmpty()) {
+			aliases = client.getConfig().isUseParameterAliases() ? new LinkedHashMap<String, String>() : null;
+			filter = buildFilter(filters, aliases);
+		}
+		if (filter != null && !filter.trim().isEmpty()) {
+			startOption(builder, queryStart).append("$filter=").append(URIUtils.encodeURL(filter));
+			// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_ParameterAliases
+			if (aliases != null) {
+				for (Map.Entry<String, String> alias : aliases.entrySet()) {
+					builder.append('&').append(alias.getKey()).append('=').append(URIUtils.encodeURL(alias.getValue()));
+				}
+			}
+		}
+			
+		// if we are getting, we need to keep track of expansion
+		if ("GET".equalsIgnoreCase(function.getMethod())) {
+			String expand = null;
+			List<?> expands = (List<?>) getValue(input, "expand");
+			// the caller can decide which relations are needed for this particular call
+			if (expands != null) {
+				expand = getExpand(expands);
+				if (expand != null) {
+					expand = URIUtils.encodeURL(expand);
+				}
+			}
+			// otherwise we use the expansion configured on the output (encoded once)
+			else {
+				expand = template.getExpand();
+			}
+			if (expand != null) {
+				startOption(builder, queryStart).append("$expand=").append(expand);
+			}
+		}
+		
+		// for deep inserts the related entities are sent inline, we want them back with their generated ids
+		boolean deepInsert = "POST".equalsIgnoreCase(function.getMethod()) && client.getConfig().isDeepInsert() && functionInput != null;
+		if (deepInsert) {
+			String expand = getDeepExpand(functionInput);
+			if (expand != null) {
+				startOption(builder, queryStart).append("$expand=").append(URIUtils.encodeURL(expand));
+			}
+		}
+		target = builder.toString();
+		
+		ModifiablePart part = null;
+		byte [] content = null;
+		if (functionInput != null) {
+			MarshallableBinding binding = null;
+			// currently only json
+			String contentType = "application/json";
+			
+			if ("application/json".equals(contentType)) {
+				binding = new JSONBinding(functionInput.getType(), charset);
+				// especially because we are using a PATCH method, we don't want to force this!
+				((JSONBinding) binding).setMarshalNonExistingRequiredFields(false);
+				// when we are using the odata.bind stuff, we need to be able to set raw values
+				((JSONBinding) binding).setAllowRaw(true);
+				// for PATCH services we want to explicitly set "null" values for optional fields if we mapped it
+				// TODO: might want to allow the user to set this explicitly for non-PATCH methods, e.g. in case of wrong method usage (PUT vs PATCH)
+				((JSONBinding) binding).setMarshalExplicitNullValues("PATCH".equalsIgnoreCase(function.getMethod()));
+			}
+
+			// update the foreign keys
+			if ("PUT".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod()) || "POST".equalsIgnoreCase(function.getMethod())) {
+				scanForForeignKeys(functionInput);
+			}
+			
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			binding.marshal(output, functionInput);
+			content = output.toByteArray();
+			part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+				new MimeHeader("Content-Length", Integer.toString(content.length)),
+				new MimeHeader("Content-Type", contentType)
+			);
+			((PlainMimeContentPart) part).setReopenable(true);
+		}
+		else {
+			part = new PlainMimeEmptyPart(null, 
+				new MimeHeader("Content-Length", "0")
+			);
+		}
+		part.setHeader(new MimeHeader("Accept", getAccept(getMetadataLevel(input))));
+		part.setHeader(new MimeHeader("Host", definition.getHost()));
+		String prefer = getPreferences(function, input, deepInsert);
+		if (prefer != null) {
+			part.setHeader(new MimeHeader("Prefer", prefer));
+		}
+		
+		// in theory we could use the odata etag we get back from the GET
+		// but in reality, we don't care (at this point)
+		// maybe in the future we'll annotate the instances etc, but for now we leave it like this
+		// the star is a special syntax indicating that we don't really care what the current version is, we just want to update it
+		if ("PUT".equalsIgnoreCase(function.getMethod()) || "DELETE".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod())) {
+			if (!client.getConfig().isIgnoreEtag()) {
+				part.setHeader(new MimeHeader("If-Match", "*"));
+			}
+		}
+		
+		DefaultHTTPRequest request = new DefaultHTTPRequest(function.getMethod(), target, part);
+		return request;
+	}
+
+	// the first query option is preceded by a question mark, the others by an ampersand
+	private static StringBuilder startOption(StringBuilder builder, int queryStart) {
+		return builder.append(builder.length() == queryStart ? '?' : '&');
+	}
+
+	/**
+	 * Each record is a regular input for the given function, they are sent in $batch changesets of the requested size.
+	 * Every changeset succeeds or fails as a whole, at most "parallelism" changesets are sent at the same time.
+	 */
+	@SuppressWarnings("unchecked")
+	public ComplexContent runBulk(Function function, ComplexContent input, ComplexType outputType) {
+		try {
+			ComplexContent output = outputType.newInstance();
+			List<Object> records = input == null ? null : (List<Object>) input.get("records");
+			if (records == null || records.isEmpty()) {
+				return output;
+			}
+			String transactionId = (String) input.get("transactionId");
+			Integer chunkSize = (Integer) input.get("chunkSize");
+			if (chunkSize == null) {
+				chunkSize = client.getConfig().getBulkChunkSize() == null ? 100 : client.getConfig().getBulkChunkSize();
+			}
+			Integer parallelism = (Integer) input.get("parallelism");
+			if (parallelism == null) {
+				parallelism = client.getConfig().getBulkParallelism() == null ? 1 : client.getConfig().getBulkParallelism();
+			}
+			// within a transaction the changesets share one connection, they are sent in order
+			if (transactionId != null) {
+				parallelism = 1;
+			}
+			String basePath = getBasePath(input);
+			ComplexType resultType = (ComplexType) outputType.get("results").getType();
+			ODataKeyCache cache = getPrimaryKey(function.getInput()) == null ? null : client.getKeyCache(function.getContext());
+
+			List<ComplexContent> results = new ArrayList<ComplexContent>();
+			List<ComplexContent> pending = new ArrayList<ComplexContent>();
+			List<DefaultHTTPRequest> requests = new ArrayList<DefaultHTTPRequest>();
+			for (int i = 0; i < records.size(); i++) {
+				ComplexContent result = resultType.newInstance();
+				result.set("index", i);
+				results.add(result);
+				Object record = records.get(i);
+				if (record instanceof ComplexContent) {
+					// a record that can not be serialized should not block the others
+					try {
+						DefaultHTTPRequest request = prepare(function, (ComplexContent) record, basePath);
+						requests.add(request);
+						pending.add(result);
+					}
+					catch (Exception e) {
+						result.set("message", e.getMessage());
+					}
+				}
+			}
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < requests.size(); i += chunkSize) {
+				List<DefaultHTTPRequest> chunk = requests.subList(i, Math.min(requests.size(), i + chunkSize));
+				List<ComplexContent> chunkResults = pending.subList(i, Math.min(pending.size(), i + chunkSize));
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						ODataBatch batch = new ODataBatch(definition.getScheme(), definition.getHost());
+						batch.addChangeset(chunk);
+						try {
+							List<HTTPResponse> responses = batch.parse(run(transactionId, new DefaultHTTPRequest("POST", basePath + "/$batch", batch.toPart())));
+							for (int j = 0; j < chunkResults.size(); j++) {
+								HTTPResponse response = responses.get(j);
+								chunkResults.get(j).set("code", response.getCode());
+								if (response.getCode() >= 200 && response.getCode() < 300) {
+									chunkResults.get(j).set("output", process(function, response, function.getOutput()));
+								}
+								else {
+									chunkResults.get(j).set("message", getContentAsString(response));
+								}
+							}
+						}
+						catch (Exception e) {
+							for (ComplexContent result : chunkResults) {
+								if (e instanceof HTTPException) {
+									result.set("code", ((HTTPException) e).getCode());
+								}
+								result.set("message", e.getMessage());
+							}
+						}
+						// the cached versions of the entities are no longer reliable, we evict once the changes are applied so a concurrent read can not put back the old version
+						finally {
+							if (cache != null) {
+								for (DefaultHTTPRequest request : chunk) {
+									cache.evict(request.getTarget().replaceAll("\\?.*$", ""));
+								}
+							}
+							invalidateReplica(function.getContext());
+						}
+						return null;
+					}
+				});
+			}
+			fanOut(tasks, parallelism);
+			output.set("results", results);
+			return output;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Counts the matching entities (GET /accounts/$count?$filter=...) or checks if at least one exists (GET /accounts?$filter=...&$top=1&$select=accountid)
+	 * The input is a subset of the list input, only the filtering fields are relevant.
+	 */
+	@SuppressWarnings("rawtypes")
+	public ComplexContent runCount(Function function, ComplexContent input, ComplexType outputType, boolean exists) {
+		try {
+			Object transactionId = input == null ? null : input.get("transactionId");
+			DefaultHTTPRequest prepared = prepare(function, input, getBasePath(input));
+			String path = prepared.getTarget().replaceAll("\\?.*$", "");
+			String query = prepared.getTarget().substring(path.length());
+			// we don't need the expansions of the list
+			String parameters = "";
+			if (!query.isEmpty()) {
+				for (String parameter : query.substring(1).split("&")) {
+					if (!parameter.isEmpty() && !parameter.startsWith("$expand=")) {
+						parameters += (parameters.isEmpty() ? "?" : "&") + parameter;
+					}
+				}
+			}
+			ComplexType resultType = null;
+			for (Element<?> element : TypeUtils.getAllChildren(function.getOutput())) {
+				if (element.getType() instanceof ComplexType) {
+					resultType = (ComplexType) element.getType();
+				}
+			}
+			ComplexContent output = outputType.newInstance();
+			if (exists) {
+				parameters += (parameters.isEmpty() ? "?" : "&") + "$top=1";
+				Element<?> key = resultType == null ? null : getPrimaryKey(resultType);
+				if (key != null) {
+					parameters += "&$select=" + URIUtils.encodeURL(key.getName());
+				}
+				ModifiablePart part = new PlainMimeEmptyPart(null,
+					new MimeHeader("Content-Length", "0"),
+					new MimeHeader("Accept", getAccept(ODataMetadataLevel.NONE)),
+					new MimeHeader("Host", definition.getHost())
+				);
+				HTTPResponse response = run((String) transactionId, new DefaultHTTPRequest("GET", path + parameters, part));
+				boolean found = false;
+				if (response.getContent() instanceof ContentPart) {
+					Structure wrapper = new Structure();
+					wrapper.setName("values");
+					if (resultType != null) {
+						wrapper.add(new ComplexElementImpl("value", resultType, wrapper,
+							new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+							new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+					}
+					ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+					try {
+						JSONBinding binding = new JSONBinding(wrapper, getCharset());
+						binding.setIgnoreUnknownElements(true);
+						ComplexContent unmarshalled = binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
+						found = unmarshalled != null && unmarshalled.get("value") instanceof List && !((List) unmarshalled.get("value")).isEmpty();
+					}
+					finally {
+						readable.close();
+					}
+				}
+				output.set("exists", found);
+			}
+			else {
+				// the count is returned as plain text
+				ModifiablePart part = new PlainMimeEmptyPart(null,
+					new MimeHeader("Content-Length", "0"),
+					new MimeHeader("Accept", "text/plain"),
+					new MimeHeader("Host", definition.getHost())
+				);
+				HTTPResponse response = run((String) transactionId, new DefaultHTTPRequest("GET", path + "/$count" + parameters, part));
+				String content = getContentAsString(response);
+				if (content == null) {
+					throw new IllegalStateException("No count returned by the server");
+				}
+				// some servers (e.g. dynamics) prepend a byte order mark
+				content = content.replace("\uFEFF", "").trim();
+				output.set("count", Long.parseLong(content));
+			}
+			return output;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Sends the same request as a regular run but hands back the response of the server without parsing it, for example to relay it to another system.
+	 * The stream is read straight from the response, it is up to the caller to consume and close it.
+	 */
+	public ComplexContent runRaw(Function function, ComplexContent input, ComplexType outputType) {
+		try {
+			Object transactionId = input == null ? null : input.get("transactionId");
+			DefaultHTTPRequest request = prepare(function, input, getBasePath(input));
+			// the status, headers and body are relayed as they are, including errors
+			HTTPResponse response = send((String) transactionId, request, null, "https".equals(definition.getScheme()), false, false);
+			ComplexContent output = outputType.newInstance();
+			output.set("code", response.getCode());
+			if (response.getContent() != null) {
+				Header contentType = MimeUtils.getHeader("Content-Type", response.getContent().getHeaders());
+				if (contentType != null) {
+					output.set("contentType", MimeUtils.getFullHeaderValue(contentType));
+				}
+				int index = 0;
+				for (Header header : response.getContent().getHeaders()) {
+					output.set("headers[" + index + "]/name", header.getName());
+					output.set("headers[" + index++ + "]/value", MimeUtils.getFullHeaderValue(header));
+				}
+				if (response.getContent() instanceof ContentPart) {
+					ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+					if (readable != null) {
+						output.set("stream", IOUtils.toInputStream(readable));
 					}
 				}
-				else if (response.getContent() instanceof ContentPart) {
+			}
+			return output;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Downloads the content of a media entity or a stream property, the stream is read straight from the connection.
+	 */
+	public ComplexContent runDownload(Function function, ComplexContent input, ComplexType outputType) {
+		try {
+			String transactionId = (String) getValue(input, "transactionId");
+			String property = (String) getValue(input, "property");
+			// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_AddressingtheMediaStreamofaMediaEnti
+			String target = getMediaTarget(function, input) + (property == null ? "" : "/" + property) + "/$value";
+			ModifiablePart part = new PlainMimeEmptyPart(null,
+				new MimeHeader("Content-Length", "0"),
+				new MimeHeader("Accept", "*/*"),
+				new MimeHeader("Host", definition.getHost())
+			);
+			HTTPResponse response = send(transactionId, new DefaultHTTPRequest("GET", target, part));
+			ComplexContent output = outputType.newInstance();
+			output.set("code", response.getCode());
+			if (response.getContent() != null) {
+				Header contentType = MimeUtils.getHeader("Content-Type", response.getContent().getHeaders());
+				if (contentType != null) {
+					output.set("contentType", MimeUtils.getFullHeaderValue(contentType));
+				}
+				output.set("size", getContentLength(response.getContent().getHeaders()));
+				if (response.getContent() instanceof ContentPart) {
 					ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
 					if (readable != null) {
-						try {
-							UnmarshallableBinding unmarshallable = null;
+						output.set("stream", IOUtils.toInputStream(readable));
+					}
+				}
+			}
+			return output;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
 	
-							boolean isListBinding = false;
-							String resultName = null;
-							ComplexType result = null;
-							for (Element<?> element : outputChildren) {
-								if (element.getType() instanceof ComplexType) {
-									Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
-									// if we have a list and we are doing JSON, we actually want to bind it to the full output because the array is abstracted away in the reponse
-									if (maxOccurs != null && maxOccurs != 1) {
-										isListBinding = true;
-										unmarshallable = new JSONBinding(function.getOutput(), charset);
-										// not necessary, they wrap a "value" around the array
-	//									((JSONBinding) unmarshallable).setIgnoreRootIfArrayWrapper(true);
-										((JSONBinding) unmarshallable).setIgnoreUnknownElements(true); 
-									}
-									else {
-										result = (ComplexType) element.getType();
-										resultName = element.getName();
-									}
-								}
-							}
-							
-							if (unmarshallable == null && result != null) {
-								unmarshallable = new JSONBinding(result, charset);
-								((JSONBinding) unmarshallable).setIgnoreUnknownElements(true);
-							}
-							
-							if (unmarshallable != null) {
-								ComplexContent unmarshal = unmarshallable.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
-								// we did the list one, so it _is_ the output
-								if (isListBinding) {
-									return unmarshal;
-								}
-								else {
-									ComplexContent newInstance = function.getOutput().newInstance();
-									newInstance.set(resultName, unmarshal);
-									return newInstance;
-								}
-							}
-							return null;
-						}
-						finally {
-							readable.close();
-						}
+	/**
+	 * Uploads the content of a media entity or a stream property.
+	 * If the size is known it is sent as is, otherwise it is sent chunked, either way the stream is passed to the connection as it is read.
+	 * If an upload url is given, the content is sent in ranges to that upload session so only one range is in memory at a time.
+	 */
+	public ComplexContent runUpload(Function function, ComplexContent input, ComplexType outputType) {
+		try {
+			String transactionId = (String) getValue(input, "transactionId");
+			String property = (String) getValue(input, "property");
+			InputStream stream = (InputStream) getValue(input, "stream");
+			if (stream == null) {
+				throw new IllegalArgumentException("No stream to upload");
+			}
+			String contentType = (String) getValue(input, "contentType");
+			if (contentType == null) {
+				contentType = "application/octet-stream";
+			}
+			Long size = (Long) getValue(input, "size");
+			String uploadUrl = (String) getValue(input, "uploadUrl");
+			String entity = getMediaTarget(function, input);
+			HTTPResponse response;
+			try {
+				if (uploadUrl != null) {
+					if (size == null) {
+						throw new IllegalArgumentException("The size is required to upload to an upload session");
 					}
+					Integer chunkSize = (Integer) getValue(input, "chunkSize");
+					response = uploadInRanges(transactionId, uploadUrl, stream, size, contentType, chunkSize == null ? 10 * 1024 * 1024 : chunkSize);
+				}
+				else {
+					List<Header> headers = new ArrayList<Header>();
+					headers.add(new MimeHeader("Content-Type", contentType));
+					headers.add(size == null ? new MimeHeader("Transfer-Encoding", "chunked") : new MimeHeader("Content-Length", size.toString()));
+					headers.add(new MimeHeader("Host", definition.getHost()));
+					String etag = (String) getValue(input, "etag");
+					if (etag != null) {
+						headers.add(new MimeHeader("If-Match", etag));
+					}
+					// the stream can only be read once so a throttled upload is not retried
+					ModifiablePart part = new PlainMimeContentPart(null, IOUtils.wrap(stream), headers.toArray(new Header[headers.size()]));
+					// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part1-protocol.html#sec_UpdateaMediaEntityStream
+					response = send(transactionId, new DefaultHTTPRequest("PUT", entity + (property == null ? "/$value" : "/" + property), part));
 				}
 			}
-			return null;
+			finally {
+				stream.close();
+			}
+			// the etag of the entity changes along with its content
+			ODataKeyCache cache = client.getKeyCache(function.getContext());
+			if (cache != null) {
+				cache.evict(entity);
+			}
+			ComplexContent output = outputType.newInstance();
+			output.set("code", response.getCode());
+			Header etag = response.getContent() == null ? null : MimeUtils.getHeader("ETag", response.getContent().getHeaders());
+			if (etag != null) {
+				output.set("etag", MimeUtils.getFullHeaderValue(etag));
+			}
+			return output;
 		}
 		catch (RuntimeException e) {
 			throw e;
@@ -779,102 +2233,491 @@ public class ODataRunner {
 		}
 	}
 	
-	// TODO: currently if we were using integer keys, we can't actually put a string syntax there!
-	// so for integer foreign keys we need to restrict the field and re-add it with a string type in the parser!
-	// when we update foreign keys, we need to use a special syntax
-	private void scanForForeignKeys(ComplexContent content) {
-		// for complex keys we might bind the same thing multiple times which is not too bad in and off itself but is a performance hit
-		List<String> alreadyBound = new ArrayList<String>();
-		Map<String, NavigationProperty> applicableProperties = new HashMap<String, NavigationProperty>();
-		List<NavigationProperty> navigationProperties = definition.getNavigationProperties();
-		if (content.getType() instanceof DefinedType) {
-			for (NavigationProperty property : navigationProperties) {
-				if (property.getQualifiedName().equals(((DefinedType) content.getType()).getId())) {
-					applicableProperties.put(property.getElement().getName(), property);
-				}
-			}
-		}
-		Collection<Element<?>> allChildren = TypeUtils.getAllChildren((ComplexType) content.getType());
-		for (Element<?> child : allChildren) {
-			// we have a binding element
-			if (child.getName().endsWith("@odata.bind")) {
-				// next to the binding string element there should be a complex type that looks like the actual thing
-				// the complex type should be used to create a new entry, the bind should be used to bind an existing entity
-				String complexName = child.getName().substring(0, child.getName().length() - "@odata.bind".length());
-				Element<?> complexBind = content.getType().get(complexName);
-				if (complexBind != null) {
-					// get the entity-set specific collection name
-					String collectionName = ValueUtils.getValue(CollectionNameProperty.getInstance(), complexBind.getProperties());
-					// if null, we assume there is only one collection for that type, it should be annotated at the global type
-					if (collectionName == null) {
-						ComplexType globalType = (ComplexType) client.getRepository().resolve(((DefinedType) complexBind.getType()).getId());
-						if (globalType != null) {
-							collectionName = ValueUtils.getValue(CollectionNameProperty.getInstance(), globalType.getProperties());
-						}
+	/**
+	 * Upload sessions (e.g. sharepoint and graph) accept the content in consecutive ranges, each range is a separate request.
+	 * The upload url is usually on another host and already contains the necessary authorization, our own credentials are not sent along.
+	 */
+	private HTTPResponse uploadInRanges(String transactionId, String uploadUrl, InputStream stream, long size, String contentType, int chunkSize) throws Exception {
+		URI uri = new URI(uploadUrl);
+		String target = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+		// we reuse the same buffer for every range
+		byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(size, 1))];
+		HTTPResponse response = null;
+		long offset = 0;
+		while (offset < size) {
+			int read = 0;
+			int length = (int) Math.min(buffer.length, size - offset);
+			while (read < length) {
+				int amount = stream.read(buffer, read, length - read);
+				if (amount < 0) {
+					throw new IOException("The stream ended after " + (offset + read) + " bytes, expected " + size);
+				}
+				read += amount;
+			}
+			byte[] range = read == buffer.length ? buffer : Arrays.copyOf(buffer, read);
+			PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(range, true),
+				new MimeHeader("Content-Type", contentType),
+				new MimeHeader("Content-Length", Integer.toString(read)),
+				new MimeHeader("Content-Range", "bytes " + offset + "-" + (offset + read - 1) + "/" + size),
+				new MimeHeader("Host", uri.getAuthority())
+			);
+			// the range is in memory so it can be sent again if the upload session is throttled
+			part.setReopenable(true);
+			response = send(transactionId, new DefaultHTTPRequest("PUT", target, part), null, "https".equals(uri.getScheme()), true, true);
+			offset += read;
+		}
+		return response;
+	}
+	
+	// the url of a single entity, e.g. /accounts(1)
+	private String getMediaTarget(Function function, ComplexContent input) throws IOException, FormatException {
+		ODataUrlTemplate template = client.getUrlTemplate(function);
+		// contained entities are addressed through their parents, the same as any other single entity operation
+		StringBuilder builder = new StringBuilder(getTarget(function, input, getBasePath(input)));
+		builder.append(template.getEntitySetSegment());
+		for (ODataUrlTemplate.Key key : template.getKeys()) {
+			Element<?> element = key.getElement();
+			builder.append(key.isQuoted() ? "('" : "(")
+				.append(((Marshallable) element.getType()).marshal(input.get(element.getName()), element.getProperties()))
+				.append(key.isQuoted() ? "')" : ")");
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Reads a resource relative to the root of the service (e.g. /accounts(1)?$select=name) and returns the response as is, used to relay reads
+	 */
+	public HTTPResponse relay(String target, String accept) {
+		try {
+			ModifiablePart part = new PlainMimeEmptyPart(null,
+				new MimeHeader("Content-Length", "0"),
+				new MimeHeader("Accept", accept),
+				new MimeHeader("Host", definition.getHost())
+			);
+			return run(null, new DefaultHTTPRequest("GET", getBasePath(null) + target, part));
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private String getContentAsString(HTTPResponse response) throws IOException {
+		byte[] content = getContent(response);
+		return content == null ? null : new String(content, getCharset());
+	}
+	
+	private byte[] getContent(HTTPResponse response) throws IOException {
+		return getContent(response.getContent());
+	}
+	
+	private byte[] getContent(Part part) throws IOException {
+		if (part instanceof ContentPart) {
+			ReadableContainer<ByteBuffer> readable = ((ContentPart) part).getReadable();
+			if (readable != null) {
+				try {
+					return IOUtils.toBytes(readable);
+				}
+				finally {
+					readable.close();
+				}
+			}
+		}
+		return null;
+	}
+	
+	// wraps content we have already read (e.g. from the cache) in a response so it can be processed like any other
+	private HTTPResponse newResponse(byte[] content) {
+		PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Content-Length", Integer.toString(content.length)),
+			new MimeHeader("Content-Type", "application/json")
+		);
+		part.setReopenable(true);
+		return new DefaultHTTPResponse(200, "OK", part);
+	}
+
+	// responses are only shared between requests that negotiated the same representation
+	private static String getVariant(String query, HTTPRequest request) {
+		return getVariant(query, getHeaderValue(request, "Accept"), getHeaderValue(request, "Prefer"));
+	}
+	
+	private static String getVariant(String query, String accept, String prefer) {
+		return query + "#" + (accept == null ? "" : accept) + "#" + (prefer == null ? "" : prefer);
+	}
+	
+	// the odata.maxpagesize preference is removed, the other preferences are kept
+	private static String withoutMaxPageSize(String prefer) {
+		if (prefer == null) {
+			return null;
+		}
+		String result = "";
+		for (String preference : prefer.split("\\s*,\\s*")) {
+			if (!preference.trim().isEmpty() && !preference.trim().toLowerCase().startsWith("odata.maxpagesize")) {
+				result += (result.isEmpty() ? "" : ", ") + preference.trim();
+			}
+		}
+		return result.isEmpty() ? null : result;
+	}
+	
+	private static String getHeaderValue(HTTPRequest request, String name) {
+		Header header = request.getContent() == null ? null : MimeUtils.getHeader(name, request.getContent().getHeaders());
+		return header == null ? null : MimeUtils.getFullHeaderValue(header);
+	}
+	
+	// the metadata level can be overridden per call
+	private ODataMetadataLevel getMetadataLevel(ComplexContent input) {
+		Object override = getValue(input, "metadata");
+		if (override != null && !override.toString().trim().isEmpty()) {
+			for (ODataMetadataLevel level : ODataMetadataLevel.values()) {
+				if (level.getParameter().equalsIgnoreCase(override.toString().trim())) {
+					return level;
+				}
+			}
+			throw new IllegalArgumentException("Invalid metadata level '" + override + "', allowed values are 'none', 'minimal' or 'full'");
+		}
+		return client.getConfig().getMetadataLevel();
+	}
+	
+	// http://docs.oasis-open.org/odata/odata-json-format/v4.01/odata-json-format-v4.01.html#sec_RequestingtheJSONFormat
+	private String getAccept(ODataMetadataLevel level) {
+		StringBuilder builder = new StringBuilder("application/json");
+		if (level != null) {
+			builder.append(";odata.metadata=").append(level.getParameter());
+		}
+		// control information like the next link and the count is sent before the values
+		if (client.getConfig().isStreaming()) {
+			builder.append(";odata.streaming=true");
+		}
+		// large numbers (Edm.Int64, Edm.Decimal) are sent as strings so they don't lose precision
+		if (client.getConfig().isIeee754Compatible()) {
+			builder.append(";IEEE754Compatible=true");
+		}
+		return builder.toString();
+	}
+	
+	private static ODataPreferReturn getPreferReturn(String value) {
+		for (ODataPreferReturn preferReturn : ODataPreferReturn.values()) {
+			if (preferReturn.name().equalsIgnoreCase(value.trim())) {
+				return preferReturn;
+			}
+		}
+		throw new IllegalArgumentException("Invalid preferReturn '" + value + "', allowed values are 'minimal' or 'representation'");
+	}
+	
+	// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part1-protocol.html#sec_HeaderPrefer
+	private String getPreferences(Function function, ComplexContent input, boolean deepInsert) {
+		List<String> preferences = new ArrayList<String>();
+		if ("POST".equalsIgnoreCase(function.getMethod()) || "PUT".equalsIgnoreCase(function.getMethod()) || "PATCH".equalsIgnoreCase(function.getMethod())) {
+			ODataPreferReturn preferReturn = client.getConfig().getPreferReturn();
+			Object override = getValue(input, "preferReturn");
+			if (override != null) {
+				preferReturn = getPreferReturn(override.toString());
+			}
+			// for deep inserts we need the representation to get the generated ids
+			if (deepInsert) {
+				preferReturn = ODataPreferReturn.REPRESENTATION;
+			}
+			if (preferReturn != null) {
+				preferences.add(preferReturn.getPreference());
+			}
+		}
+		else if ("GET".equalsIgnoreCase(function.getMethod())) {
+			Integer maxPageSize = client.getConfig().getMaxPageSize();
+			Object override = getValue(input, "maxPageSize");
+			if (override instanceof Integer) {
+				maxPageSize = (Integer) override;
+			}
+			if (maxPageSize != null) {
+				preferences.add("odata.maxpagesize=" + maxPageSize);
+			}
+		}
+		if (preferences.isEmpty()) {
+			return null;
+		}
+		String prefer = "";
+		for (String preference : preferences) {
+			prefer += (prefer.isEmpty() ? "" : ", ") + preference;
+		}
+		return prefer;
+	}
+
+	private ComplexContent process(Function function, HTTPResponse response, ComplexType output) throws IOException, ParseException {
+		Charset charset = getCharset();
+		Collection<Element<?>> outputChildren = TypeUtils.getAllChildren(output);
+		HTTPUtils.validateResponse(response);
+		// for deep inserts we asked for a representation of the created entity so we can map back the generated ids
+		// the same goes for regular creates when the server returns a representation but the output only has room for the id
+		if ("POST".equalsIgnoreCase(function.getMethod()) && (client.getConfig().isDeepInsert() || !hasComplexChild(output)) && response.getCode() != 204 && response.getContent() instanceof ContentPart) {
+			ComplexType entityType = getEntityType(function);
+			ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+			if (entityType != null && readable != null) {
+				try {
+					JSONBinding binding = new JSONBinding(entityType, charset);
+					binding.setIgnoreUnknownElements(true);
+					ComplexContent created = binding.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
+					ComplexContent newInstance = output.newInstance();
+					if (output.get("created") != null) {
+						newInstance.set("created", created);
 					}
-					if (collectionName != null) {
-						List<Element<?>> linked = new ArrayList<Element<?>>();
-						for (Element<?> potential : allChildren) {
-							String foreignName = ValueUtils.getValue(ForeignNameProperty.getInstance(), potential.getProperties());
-							// linked to this type
-							if (foreignName != null && foreignName.equals(complexName)) {
-								linked.add(potential);
-							}
+					Iterator<Element<?>> iterator = outputChildren.iterator();
+					if (created != null && iterator.hasNext()) {
+						Element<?> field = iterator.next();
+						Element<?> primaryKey = getPrimaryKey(entityType);
+						if (primaryKey == null) {
+							primaryKey = entityType.get(field.getName());
 						}
-						if (linked.size() == 1) {
-							Object childValue = content.get(linked.get(0).getName());
-							if (childValue instanceof Iterable) {
-								int counter = 0;
-								for (Object singleChild : (Iterable) childValue) {
-									content.set(child.getName() + "[" + counter++ + "]", "/" + collectionName + "(" + (singleChild instanceof String ? "'" : "") + singleChild + (singleChild instanceof String ? "'" : "") + ")");
-								}
-								// unset actual, we don't want it to end up in the json though!!!
-//								content.set(linked.get(0).getName(), null);
-							}
-							else if (childValue != null) {
-								content.set(child.getName(), "/" + collectionName + "(" + (childValue instanceof String ? "'" : "") + childValue + (childValue instanceof String ? "'" : "") + ")");
-								// unset actual, we don't want it to end up in the json though!!!
-//								content.set(linked.get(0).getName(), null);
-							}
-							// never allow the value to pass even if null?
-							content.delete(linked.get(0).getName());
+						if (primaryKey != null && field.getType() instanceof SimpleType) {
+							newInstance.set(field.getName(), created.get(primaryKey.getName()));
 						}
-						// no support yet for lists of values!!
-						else if (linked.size() > 1) {
-							String query = "";
-							for (Element<?> bindValue : linked) {
-								String foreignKey = ValueUtils.getValue(ForeignKeyProperty.getInstance(), bindValue.getProperties());
-								if (foreignKey != null) {
-									String [] parts = foreignKey.split(":");
-									Object newValue = content.get(bindValue.getName());
-									if (newValue != null) {
-										if (!query.isEmpty()) {
-											query += ",";
-										}
-										query += parts[1] + "=" + (newValue instanceof String ? "'" : "") + newValue + (newValue instanceof String ? "'" : "");
-										// unset actual
-//										content.set(bindValue.getName(), null);
-									}
-									// never allow the value to pass, even if null?
-									content.delete(bindValue.getName());
-								}
+					}
+					return newInstance;
+				}
+				finally {
+					readable.close();
+				}
+			}
+		}
+		// we did a create and want to check for a header that indicates the id of
+		if (response.getCode() == 204 && "POST".equalsIgnoreCase(function.getMethod())) {
+			Header header = MimeUtils.getHeader("OData-EntityId", response.getContent().getHeaders());
+			if (header == null) {
+				header = MimeUtils.getHeader("Location", response.getContent().getHeaders());
+			}
+			if (header != null) {
+				// check if there is a field to put it in
+				Collection<Element<?>> allChildren = outputChildren;
+				Iterator<Element<?>> iterator = allChildren.iterator();
+				if (iterator.hasNext()) {
+					Element<?> field = iterator.next();
+					// this is actually the full URI to the item, we just want to extract the id
+					String fullHeaderValue = MimeUtils.getFullHeaderValue(header);
+					// for example: https://bebat-dev.crm4.dynamics.com/api/data/v9.2/nrq_registrations(358b0d2a-f3a6-ed11-aad1-6045bd957895)
+					String id = fullHeaderValue.replaceAll("^http.*/[^/]+\\(([^)]+)\\)$", "$1");
+					ComplexContent newInstance = output.newInstance();
+					newInstance.set(field.getName(), id);
+					return newInstance;
+				}
+			}
+		}
+		else if (response.getContent() instanceof ContentPart) {
+			ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+			if (readable != null) {
+				try {
+					UnmarshallableBinding unmarshallable = null;
+
+					boolean isListBinding = false;
+					String resultName = null;
+					ComplexType result = null;
+					for (Element<?> element : outputChildren) {
+						if (element.getType() instanceof ComplexType) {
+							Integer maxOccurs = ValueUtils.getValue(MaxOccursProperty.getInstance(), element.getProperties());
+							// if we have a list and we are doing JSON, we actually want to bind it to the full output because the array is abstracted away in the reponse
+							if (maxOccurs != null && maxOccurs != 1) {
+								isListBinding = true;
+								unmarshallable = new JSONBinding(output, charset);
+								// not necessary, they wrap a "value" around the array
+//									((JSONBinding) unmarshallable).setIgnoreRootIfArrayWrapper(true);
+								((JSONBinding) unmarshallable).setIgnoreUnknownElements(true); 
 							}
-							if (!query.isEmpty()) {
-								content.set(child.getName(), "/" + collectionName + "(" + query + ")");
+							else {
+								result = (ComplexType) element.getType();
+								resultName = element.getName();
 							}
 						}
 					}
+					
+					if (unmarshallable == null && result != null) {
+						unmarshallable = new JSONBinding(result, charset);
+						((JSONBinding) unmarshallable).setIgnoreUnknownElements(true);
+					}
+					
+					if (unmarshallable != null) {
+						ComplexContent unmarshal = unmarshallable.unmarshal(IOUtils.toInputStream(readable), new Window[0]);
+						// we did the list one, so it _is_ the output
+						if (isListBinding) {
+							return unmarshal;
+						}
+						else {
+							ComplexContent newInstance = output.newInstance();
+							newInstance.set(resultName, unmarshal);
+							return newInstance;
+						}
+					}
+					return null;
+				}
+				finally {
+					readable.close();
+				}
+			}
+		}
+		return null;
+	}
+	
+	// TODO: currently if we were using integer keys, we can't actually put a string syntax there!
+	// so for integer foreign keys we need to restrict the field and re-add it with a string type in the parser!
+	// when we update foreign keys, we need to use a special syntax
+	@SuppressWarnings("rawtypes")
+	private void scanForForeignKeys(ComplexContent content) {
+		ODataBindingPlan plan = client.getBindingPlan((ComplexType) content.getType());
+		for (ODataBindingPlan.Binding binding : plan.getBindings()) {
+			if (!binding.isComposite()) {
+				String field = binding.getFields().get(0);
+				Object childValue = content.get(field);
+				if (childValue instanceof Iterable) {
+					int counter = 0;
+					for (Object singleChild : (Iterable) childValue) {
+						content.set(binding.getName() + "[" + counter++ + "]", "/" + binding.getCollectionName() + "(" + (singleChild instanceof String ? "'" : "") + singleChild + (singleChild instanceof String ? "'" : "") + ")");
+					}
+				}
+				else if (childValue != null) {
+					content.set(binding.getName(), "/" + binding.getCollectionName() + "(" + (childValue instanceof String ? "'" : "") + childValue + (childValue instanceof String ? "'" : "") + ")");
+				}
+				// never allow the value to pass even if null?
+				content.delete(field);
+			}
+			// no support yet for lists of values!!
+			else {
+				String query = "";
+				for (int i = 0; i < binding.getFields().size(); i++) {
+					Object newValue = content.get(binding.getFields().get(i));
+					if (newValue != null) {
+						if (!query.isEmpty()) {
+							query += ",";
+						}
+						query += binding.getKeys().get(i) + "=" + (newValue instanceof String ? "'" : "") + newValue + (newValue instanceof String ? "'" : "");
+					}
+					// never allow the value to pass, even if null?
+					content.delete(binding.getFields().get(i));
+				}
+				if (!query.isEmpty()) {
+					content.set(binding.getName(), "/" + binding.getCollectionName() + "(" + query + ")");
+				}
+			}
+		}
+		for (String child : plan.getChildren()) {
+			Object object = content.get(child);
+			if (object instanceof ComplexContent) {
+				scanForForeignKeys((ComplexContent) object);
+			}
+			// for deep inserts of collection-valued navigation properties, each child can have its own bindings
+			else if (object instanceof Iterable) {
+				for (Object single : (Iterable) object) {
+					if (single instanceof ComplexContent) {
+						scanForForeignKeys((ComplexContent) single);
+					}
+				}
+			}
+			// TODO: https://learn.microsoft.com/en-us/power-apps/developer/data-platform/webapi/associate-disassociate-entities-using-web-api
+		}
+	}
+	
+	private List<NavigationProperty> getNavigationProperties(ComplexType type) {
+		return type instanceof DefinedType ? client.getNavigationProperties(((DefinedType) type).getId()) : new ArrayList<NavigationProperty>();
+	}
+	
+	// the entity we send along is the complex child of the input
+	private ComplexType getEntityType(Function function) {
+		ComplexType entityType = null;
+		for (Element<?> element : TypeUtils.getAllChildren(function.getInput())) {
+			if (element.getType() instanceof ComplexType) {
+				entityType = (ComplexType) element.getType();
+			}
+		}
+		return entityType;
+	}
+	
+	private boolean hasComplexChild(ComplexType type) {
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			if (element.getType() instanceof ComplexType) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private Element<?> getPrimaryKey(ComplexType type) {
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			Boolean primaryKey = ValueUtils.getValue(PrimaryKeyProperty.getInstance(), element.getProperties());
+			if (primaryKey != null && primaryKey) {
+				return element;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Builds the $expand for the requested relations, for example: contacts($select=fullname;$top=10),owner
+	 */
+	private String getExpand(List<?> expands) {
+		StringBuilder builder = new StringBuilder();
+		for (Object object : expands) {
+			ODataExpand expand = unwrap(object);
+			if (expand == null || expand.getName() == null || expand.getName().trim().isEmpty()) {
+				continue;
+			}
+			if (builder.length() > 0) {
+				builder.append(",");
+			}
+			builder.append(expand.getName().trim());
+			List<String> options = new ArrayList<String>();
+			if (expand.getSelect() != null && !expand.getSelect().isEmpty()) {
+				StringBuilder select = new StringBuilder();
+				for (String field : expand.getSelect()) {
+					if (field != null && !field.trim().isEmpty()) {
+						select.append(select.length() == 0 ? "" : ",").append(field.trim());
+					}
+				}
+				if (select.length() > 0) {
+					options.add("$select=" + select);
+				}
+			}
+			if (expand.getFilter() != null && !expand.getFilter().trim().isEmpty()) {
+				options.add("$filter=" + expand.getFilter());
+			}
+			if (expand.getTop() != null) {
+				options.add("$top=" + expand.getTop());
+			}
+			if (!options.isEmpty()) {
+				builder.append("(");
+				for (int i = 0; i < options.size(); i++) {
+					builder.append(i == 0 ? "" : ";").append(options.get(i));
 				}
+				builder.append(")");
 			}
-			else if (child.getType() instanceof ComplexType) {
-				Object object = content.get(child.getName());
-				if (object instanceof ComplexContent) {
-					scanForForeignKeys((ComplexContent) object);
+		}
+		return builder.length() == 0 ? null : builder.toString();
+	}
+	
+	/**
+	 * Deep inserts send related entities inline, we expand the same navigation properties so the response contains their generated ids.
+	 * For example: contacts($expand=tasks),owner
+	 */
+	@SuppressWarnings("rawtypes")
+	private String getDeepExpand(ComplexContent content) {
+		String expand = null;
+		for (NavigationProperty property : getNavigationProperties(content.getType())) {
+			Object value = content.get(property.getElement().getName());
+			ComplexContent related = null;
+			if (value instanceof ComplexContent) {
+				related = (ComplexContent) value;
+			}
+			else if (value instanceof Iterable) {
+				for (Object single : (Iterable) value) {
+					if (single instanceof ComplexContent) {
+						related = (ComplexContent) single;
+						break;
+					}
 				}
-				// TODO: lists as well?
-				// TODO: https://learn.microsoft.com/en-us/power-apps/developer/data-platform/webapi/associate-disassociate-entities-using-web-api
+			}
+			if (related != null) {
+				String nested = getDeepExpand(related);
+				String single = property.getElement().getName() + (nested == null ? "" : "($expand=" + nested + ")");
+				expand = expand == null ? single : expand + "," + single;
 			}
 		}
+		return expand;
 	}
 	
 	// this is inspired by, copied from the jdbc code
@@ -884,7 +2727,7 @@ public class ODataRunner {
 	// if it is true, we apply the filter, if it is false, we apply the inverse filter, if it is null, we skip the filter
 	// if there is no value, the filter is applied
 	// for CRUD this is enforced to be false currently by the crud code
-	private static boolean skipFilter(Filter filter) {
+	static boolean skipFilter(Filter filter) {
 		// if it is not a traditional comparison operator, we assume it is a boolean one
 		if (!inputOperators.contains(filter.getOperator()) && filter.getValues() != null && !filter.getValues().isEmpty()) {
 			Object object = filter.getValues().get(0);
@@ -894,7 +2737,7 @@ public class ODataRunner {
 		}
 		return false;
 	}
-	private static boolean inverseFilter(Filter filter) {
+	static boolean inverseFilter(Filter filter) {
 		if (!inputOperators.contains(filter.getOperator()) && filter.getValues() != null && !filter.getValues().isEmpty()) {
 			Object object = filter.getValues().get(0);
 			if (object instanceof Boolean && !(Boolean) object) {
@@ -912,18 +2755,60 @@ public class ODataRunner {
 		filters.add(filter);
 		System.out.println(new ODataRunner(null).buildFilter(filters));
 	}
-	private String buildFilter(List<Filter> filters) {
-		String where = "";
+	String buildFilter(List<Filter> filters) {
+		return buildFilter(filters, null);
+	}
+	
+	/**
+	 * Filters with the same shape (keys, operators, amount of values...) share a compiled template, only the values are bound per call.
+	 * If aliases are passed in, the single values are sent as parameter aliases.
+	 */
+	private String buildFilter(List<Filter> filters, Map<String, String> aliases) {
+		List<Filter> unwrapped = new ArrayList<Filter>();
+		for (Object filterObject : filters) {
+			unwrapped.add(ODataRunner.<Filter>unwrap(filterObject));
+		}
+		ODataFilterTemplate template;
+		if (client == null) {
+			template = compileFilter(unwrapped);
+		}
+		else {
+			String shape = getFilterShape(unwrapped);
+			template = client.getFilterTemplates().get(shape);
+			if (template == null) {
+				template = compileFilter(unwrapped);
+				// the keys can come from the caller so we don't want to grow indefinitely
+				if (client.getFilterTemplates().size() < 1000) {
+					client.getFilterTemplates().put(shape, template);
+				}
+			}
+		}
+		return template.bind(unwrapped, aliases);
+	}
+	
+	// everything that determines the structure of the filter, but not the actual values
+	private static String getFilterShape(List<Filter> filters) {
+		StringBuilder builder = new StringBuilder();
+		for (Filter filter : filters) {
+			int amount = filter.getValues() == null ? 0 : filter.getValues().size();
+			builder.append(filter.getKey()).append('\u0000')
+				.append(filter.getOperator()).append('\u0000')
+				.append(filter.isOr() ? 'o' : 'a')
+				.append(filter.isCaseInsensitive() ? 'i' : 's')
+				.append(amount == 0 ? '0' : (amount == 1 ? '1' : 'n'))
+				.append(skipFilter(filter) ? 'k' : '-')
+				.append(inverseFilter(filter) ? '!' : '-')
+				.append('\n');
+		}
+		return builder.toString();
+	}
+	
+	ODataFilterTemplate compileFilter(List<Filter> filters) {
+		ODataFilterTemplate template = new ODataFilterTemplate();
+		boolean empty = true;
 		boolean openOr = false;
 		for (int i = 0; i < filters.size(); i++) {
-			Object filterObject = filters.get(i);
-			if (filterObject instanceof MaskedContent) {
-				filterObject = ((MaskedContent) filterObject).getOriginal();
-			}
-			if (filterObject instanceof BeanInstance) {
-				filterObject = ((BeanInstance<?>) filterObject).getUnwrapped();
-			}
-			Filter filter = (Filter) filterObject;
+			Filter filter = filters.get(i);
 			if (filter.getKey() == null) {
 				continue;
 			}
@@ -932,28 +2817,19 @@ public class ODataRunner {
 				continue;
 			}
 			
-			if (!where.isEmpty()) {
+			if (!empty) {
 				if (filter.isOr()) {
-					where += " or";
+					template.addLiteral(" or");
 				}
 				else {
-					where += " and";
+					template.addLiteral(" and");
 				}
 			}
-			Filter nextFilter = null;
-			if (i < filters.size() - 1) {
-				Object nextFilterObject = filters.get(i + 1);
-				if (nextFilterObject instanceof MaskedContent) {
-					nextFilterObject = ((MaskedContent) nextFilterObject).getOriginal();
-				}
-				if (nextFilterObject instanceof BeanInstance) {
-					nextFilterObject = ((BeanInstance<?>) nextFilterObject).getUnwrapped();
-				}
-				nextFilter = (Filter) nextFilterObject;
-			}
+			empty = false;
+			Filter nextFilter = i < filters.size() - 1 ? filters.get(i + 1) : null;
 			// start the or
 			if (!openOr && nextFilter != null && nextFilter.isOr()) {
-				where += " (";
+				template.addLiteral(" (");
 				openOr = true;
 			}
 			
@@ -984,90 +2860,46 @@ public class ODataRunner {
 				inverse = false;
 			}
 			else if (inverse) {
-				where += " not(";
+				template.addLiteral(" not(");
 			}
 			
 			if (operator.equals("like")) {
-				where += "contains(";
+				template.addLiteral("contains(");
 			}
 			if (filter.isCaseInsensitive()) {
-				where += " tolower(" + filter.getKey() + ")";
+				template.addLiteral(" tolower(" + filter.getKey() + ")");
 			}
 			else {
-				where += " " + filter.getKey();
+				template.addLiteral(" " + filter.getKey());
 			}
-			where += " " + mapOperator(operator);
+			template.addLiteral(" " + mapOperator(operator));
 			
 			if (filter.getValues() != null && !filter.getValues().isEmpty() && (inputOperators.contains(operator) || "in".equals(operator))) {
-				if (filter.getValues().size() == 1) {
-					Object object = filter.getValues().get(0);
-					
-					// for the like operator, we have probably injected "%" to indicate wildcards, remove those, there are no wildcards here
-					if (operator.equals("like")) {
-						object = object.toString().replace("%", "");
-					}
-					if (filter.isCaseInsensitive()) {
-						where += " tolower('" + object + "')";
-					}
-					else if (object instanceof Date) {
-						// we want classic dateTime formatting of the date, not the default java stringification
-						String stringifiedDate = ConverterFactory.getInstance().getConverter().convert(object, String.class);
-						// timezone is mandatory!
-						where += " " + stringifiedDate + "Z";
-					}
-					else {
-						where += " " + (object instanceof String ? "'" + object + "'" : object);
-					}
-				}
-				else {
-					where += " (";
-					boolean first = true;
-					for (Object single : filter.getValues()) {
-						if (first) {
-							first = false;
-						}
-						else {
-							where += ",";
-						}
-						if (filter.isCaseInsensitive()) {
-							where += "tolower('" + single + "')";
-						}
-						else if (single instanceof Date) {
-							// we want classic dateTime formatting of the date, not the default java stringification
-							String stringifiedDate = ConverterFactory.getInstance().getConverter().convert(single, String.class);
-							// timezone is mandatory!
-							where += " " + stringifiedDate + "Z";
-						}
-						else {
-							where += (single instanceof String ? "'" + single + "'" : single);
-						}
-					}
-					where += ")";
-				}
+				template.addSlot(new ODataFilterTemplate.Slot(i, filter.getValues().size() > 1, operator.equals("like"), filter.isCaseInsensitive()));
 			}
 			
 			if (operator.equals("like")) {
-				where += ")";
+				template.addLiteral(")");
 			}
 			
 			// close the not statement
 			if (inverse) {
-				where += ")";
+				template.addLiteral(")");
 			}
 			// check if we want to close an or
 			if (nextFilter != null && openOr && !nextFilter.isOr()) {
-				where += ")";
+				template.addLiteral(")");
 				openOr = false;
 			}
 		}
 		if (openOr) {
-			where += ")";
+			template.addLiteral(")");
 			openOr = false;
 		}
-		return where;
+		return template;
 	}
 	
-	private String mapOperator(String operator) {
+	static String mapOperator(String operator) {
 		if ("=".equals(operator)) {
 			return "eq";
 		}
@@ -0,0 +1,188 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.CommentProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Downloads or uploads the binary content of a media entity ($value) or a stream property of an entity.
+ * The content is streamed from and to the server, it is never held in memory as a whole.
+ */
+public class ODataStreamService implements DefinedService {
+
+	private Function function;
+	private String id;
+	private ODataClient client;
+	private boolean upload;
+	private Structure input, output;
+
+	public ODataStreamService(String id, ODataClient client, Function function, boolean upload) {
+		this.id = id;
+		this.client = client;
+		this.function = function;
+		this.upload = upload;
+	}
+
+	@Override
+	public ServiceInterface getServiceInterface() {
+		return new ServiceInterface() {
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				if (output == null) {
+					synchronized(ODataStreamService.this) {
+						if (output == null) {
+							Structure output = new Structure();
+							output.setName("output");
+							output.add(new SimpleElementImpl<Integer>("code", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), output));
+							if (upload) {
+								output.add(new SimpleElementImpl<String>("etag", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							}
+							else {
+								output.add(new SimpleElementImpl<String>("contentType", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+								output.add(new SimpleElementImpl<Long>("size", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), output,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+								output.add(new SimpleElementImpl<InputStream>("stream", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(InputStream.class), output,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							}
+							ODataStreamService.this.output = output;
+						}
+					}
+				}
+				return output;
+			}
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			public ComplexType getInputDefinition() {
+				if (input == null) {
+					synchronized(ODataStreamService.this) {
+						if (input == null) {
+							Structure input = new Structure();
+							input.setName("input");
+							input.add(new SimpleElementImpl<String>("transactionId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+							// the same keys as the read by id
+							for (ODataUrlTemplate.Key key : client.getUrlTemplate(function).getKeys()) {
+								input.add(new SimpleElementImpl(key.getElement().getName(), (SimpleType) key.getElement().getType(), input));
+							}
+							// the inputs that can hold the parent ids of contained entities
+							for (Element<?> element : TypeUtils.getAllChildren(function.getInput())) {
+								if (element.getType() instanceof ComplexType && input.get(element.getName()) == null) {
+									for (Element<?> child : TypeUtils.getAllChildren((ComplexType) element.getType())) {
+										if (child.getName().indexOf("@odata.parent.id") > 0) {
+											input.add(new ComplexElementImpl(element.getName(), (ComplexType) element.getType(), input,
+												new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+											break;
+										}
+									}
+								}
+							}
+							input.add(new SimpleElementImpl<String>("property", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+								new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+								new ValueImpl<String>(CommentProperty.getInstance(), "The stream property to use, if left empty the entity itself is the media resource")));
+							if (upload) {
+								input.add(new SimpleElementImpl<InputStream>("stream", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(InputStream.class), input));
+								input.add(new SimpleElementImpl<String>("contentType", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+								input.add(new SimpleElementImpl<Long>("size", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+									new ValueImpl<String>(CommentProperty.getInstance(), "If the size is not known up front, the content is sent chunked")));
+								input.add(new SimpleElementImpl<String>("etag", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+									new ValueImpl<String>(CommentProperty.getInstance(), "Only overwrite the content if it has not changed since")));
+								input.add(new SimpleElementImpl<String>("uploadUrl", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+									new ValueImpl<String>(CommentProperty.getInstance(), "The url of an upload session, the content is sent in ranges to this url instead (the size is required)")));
+								input.add(new SimpleElementImpl<Integer>("chunkSize", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), input,
+									new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+									new ValueImpl<String>(CommentProperty.getInstance(), "The size of the ranges in an upload session, defaults to 10mb")));
+							}
+							List<String> pathParameters = client.getPathParameters();
+							if (pathParameters != null && !pathParameters.isEmpty()) {
+								Structure path = new Structure();
+								path.setName("path");
+								for (String parameter : pathParameters) {
+									path.add(new SimpleElementImpl<String>(parameter, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), path));
+								}
+								input.add(new ComplexElementImpl("path", path, input));
+							}
+							ODataStreamService.this.input = input;
+						}
+					}
+				}
+				return input;
+			}
+		};
+	}
+
+	@Override
+	public ServiceInstance newInstance() {
+		return new ServiceInstance() {
+			@Override
+			public Service getDefinition() {
+				return ODataStreamService.this;
+			}
+			@Override
+			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+				ODataRunner runner = new ODataRunner(client, executionContext);
+				return upload
+					? runner.runUpload(function, input, getServiceInterface().getOutputDefinition())
+					: runner.runDownload(function, input, getServiceInterface().getOutputDefinition());
+			}
+		};
+	}
+
+	@Override
+	public Set<String> getReferences() {
+		return new HashSet<String>();
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of where the time went while executing a single request.
+ * Phases are consecutive, each mark closes the phase that started at the previous mark.
+ */
+public class ODataTimeline {
+
+	private String method, target, traceParent;
+	private Integer code;
+	private Long requestSize, responseSize;
+	private List<Phase> phases = new ArrayList<Phase>();
+	private long started = System.nanoTime(), last = started;
+
+	public ODataTimeline(String method, String target) {
+		this.method = method;
+		this.target = target;
+	}
+
+	public void mark(String phase) {
+		long now = System.nanoTime();
+		// repeated phases (e.g. retries) are added up
+		for (Phase existing : phases) {
+			if (existing.getName().equals(phase)) {
+				existing.duration += now - last;
+				last = now;
+				return;
+			}
+		}
+		phases.add(new Phase(phase, now - last));
+		last = now;
+	}
+
+	// in milliseconds
+	public long getDuration() {
+		return (last - started) / 1000000;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+	public String getTarget() {
+		return target;
+	}
+	public String getTraceParent() {
+		return traceParent;
+	}
+	public void setTraceParent(String traceParent) {
+		this.traceParent = traceParent;
+	}
+	public Integer getCode() {
+		return code;
+	}
+	public void setCode(Integer code) {
+		this.code = code;
+	}
+	public Long getRequestSize() {
+		return requestSize;
+	}
+	public void setRequestSize(Long requestSize) {
+		this.requestSize = requestSize;
+	}
+	public Long getResponseSize() {
+		return responseSize;
+	}
+	public void setResponseSize(Long responseSize) {
+		this.responseSize = responseSize;
+	}
+	public List<Phase> getPhases() {
+		return phases;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(method).append(" ").append(target)
+			.append(" [").append(code == null ? "-" : code).append("] ")
+			.append(getDuration()).append("ms, sent ")
+			.append(requestSize == null ? "?" : requestSize).append(" bytes, received ")
+			.append(responseSize == null ? "?" : responseSize).append(" bytes");
+		for (Phase phase : phases) {
+			builder.append(", ").append(phase.getName()).append("=").append(phase.getDuration()).append("ms");
+		}
+		if (traceParent != null) {
+			builder.append(", traceparent=").append(traceParent);
+		}
+		return builder.toString();
+	}
+
+	public static class Phase {
+		private String name;
+		private long duration;
+
+		public Phase(String name, long duration) {
+			this.name = name;
+			this.duration = duration;
+		}
+
+		public String getName() {
+			return name;
+		}
+		// in milliseconds
+		public long getDuration() {
+			return duration / 1000000;
+		}
+	}
+}
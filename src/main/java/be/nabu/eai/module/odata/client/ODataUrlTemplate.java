@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.resources.URIUtils;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.DuplicateProperty;
+import be.nabu.libs.types.properties.PrimaryKeyProperty;
+
+/**
+ * Everything about the url of a function that does not depend on the input.
+ * It is calculated once per function so building a request only has to fill in the values.
+ */
+public class ODataUrlTemplate {
+
+	// the type that describes the fields you can filter on
+	private ComplexType usedType;
+	// the name of the complex input (if any), e.g. the entity to create
+	private String inputName;
+	// e.g. /accounts
+	private String entitySetSegment;
+	private List<Key> keys = new ArrayList<Key>();
+	// the encoded expansion configured for the output, used when the caller does not choose
+	private String expand;
+
+	public ODataUrlTemplate(Function function) {
+		Collection<Element<?>> inputChildren = TypeUtils.getAllChildren(function.getInput());
+		for (Element<?> element : inputChildren) {
+			// if we have a primary key field, we are likely doing a specific get or an update/delete
+			Boolean primaryKey = ValueUtils.getValue(PrimaryKeyProperty.getInstance(), element.getProperties());
+			if (primaryKey != null && primaryKey) {
+				// uuids don't need quotes, nor do numbers
+				keys.add(new Key(element, String.class.isAssignableFrom(((SimpleType<?>) element.getType()).getInstanceClass())));
+			}
+			if (element.getType() instanceof ComplexType) {
+				usedType = (ComplexType) element.getType();
+				inputName = element.getName();
+			}
+		}
+		String expand = null;
+		for (Element<?> element : TypeUtils.getAllChildren(function.getOutput())) {
+			// if we do not have a complex type in the input, check the output
+			if (inputName == null && element.getType() instanceof ComplexType) {
+				usedType = (ComplexType) element.getType();
+			}
+			// we use the duplicate property to keep track of expansion
+			String value = ValueUtils.getValue(DuplicateProperty.getInstance(), element.getProperties());
+			if (value != null && !value.trim().isEmpty()) {
+				expand = expand == null ? value : expand + "," + value;
+			}
+		}
+		this.expand = expand == null ? null : URIUtils.encodeURL(expand);
+		this.entitySetSegment = "/" + function.getContext();
+	}
+
+	public ComplexType getUsedType() {
+		return usedType;
+	}
+	public String getInputName() {
+		return inputName;
+	}
+	public String getEntitySetSegment() {
+		return entitySetSegment;
+	}
+	public List<Key> getKeys() {
+		return keys;
+	}
+	public String getExpand() {
+		return expand;
+	}
+
+	public static class Key {
+		private Element<?> element;
+		private boolean quoted;
+
+		public Key(Element<?> element, boolean quoted) {
+			this.element = element;
+			this.quoted = quoted;
+		}
+
+		public Element<?> getElement() {
+			return element;
+		}
+		public boolean isQuoted() {
+			return quoted;
+		}
+	}
+}
@@ -0,0 +1,456 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.odata.client.api.ODataWriteBehindFailureHandler;
+import be.nabu.eai.repository.util.SystemPrincipal;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+
+/**
+ * Holds back PATCH requests and sends them later in a $batch.
+ * Successive updates of the same entity are merged into a single PATCH, the last value of a field wins.
+ * If a spool folder is configured, every update is appended to a journal and forced to disk before the call returns so it survives a restart.
+ * After each flush the journal is compacted to what is still pending.
+ * Updates that the server rejects or that still fail after the maximum amount of attempts are passed to the failure handler (if any) and written to a dead letter file next to the spool.
+ */
+public class ODataWriteBehind {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	public static class Update {
+		// the entity set is kept for cache eviction
+		private String basePath, target, entitySet;
+		private byte[] content;
+		// how many times we tried to send it
+		private int attempts;
+
+		public Update(String basePath, String target, String entitySet, byte[] content) {
+			this(basePath, target, entitySet, content, 0);
+		}
+		
+		public Update(String basePath, String target, String entitySet, byte[] content, int attempts) {
+			this.basePath = basePath;
+			this.target = target;
+			this.entitySet = entitySet;
+			this.content = content;
+			this.attempts = attempts;
+		}
+
+		public String getBasePath() {
+			return basePath;
+		}
+		public String getTarget() {
+			return target;
+		}
+		public String getEntitySet() {
+			return entitySet;
+		}
+		public byte[] getContent() {
+			return content;
+		}
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	private ODataClient client;
+	// the charset the bodies were marshalled in
+	private Charset charset;
+	private long delay;
+	private int batchSize, maxAttempts;
+	private File spool;
+	// flushes are not shared with other background work like replication, they should not have to wait for it
+	private ScheduledExecutorService scheduler;
+	// only one flush at a time, the scheduled one and the one on close could otherwise overlap
+	private Object flushLock = new Object();
+	// keyed by the target (the url of the entity), in the order they were first updated
+	private Map<String, Update> pending = new LinkedHashMap<String, Update>();
+	// the updates that are being sent, they stay in the spool until we know the outcome
+	private List<Update> inflight = new ArrayList<Update>();
+	private boolean scheduled, closed;
+
+	public ODataWriteBehind(final ODataClient client, Charset charset, long delay, int batchSize, int maxAttempts, File spool) {
+		this.client = client;
+		this.charset = charset;
+		this.delay = delay;
+		this.batchSize = batchSize;
+		this.maxAttempts = maxAttempts;
+		this.spool = spool;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "odata-write-behind-" + client.getId());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (spool != null && spool.exists()) {
+			try {
+				for (Update update : read(spool)) {
+					Update existing = pending.get(update.getTarget());
+					pending.put(update.getTarget(), existing == null ? update : new Update(update.getBasePath(), update.getTarget(), update.getEntitySet(), merge(existing.getContent(), update.getContent()), Math.max(existing.getAttempts(), update.getAttempts())));
+				}
+				if (!pending.isEmpty()) {
+					logger.info("Recovered " + pending.size() + " pending update(s) for " + client.getId() + " from " + spool);
+					schedule(0);
+				}
+			}
+			catch (IOException e) {
+				logger.error("Could not recover the pending updates for " + client.getId() + " from " + spool, e);
+			}
+		}
+	}
+
+	public void enqueue(Update update) throws IOException {
+		boolean full;
+		synchronized(this) {
+			// only the update itself is journaled, it is merged again on recovery
+			append(update);
+			Update existing = pending.get(update.getTarget());
+			if (existing != null) {
+				update = new Update(update.getBasePath(), update.getTarget(), update.getEntitySet(), merge(existing.getContent(), update.getContent()), existing.getAttempts());
+			}
+			pending.put(update.getTarget(), update);
+			full = pending.size() >= batchSize;
+		}
+		schedule(full ? 0 : delay);
+	}
+
+	private void schedule(long delay) {
+		synchronized(this) {
+			// if a flush is already scheduled, we only want to move it forward when the batch is full
+			if (closed || (scheduled && delay > 0)) {
+				return;
+			}
+			scheduled = true;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				}
+				catch (Exception e) {
+					logger.error("Could not flush the pending updates for " + client.getId(), e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends everything that is pending, updates that fail because the server is unavailable or throttling are kept for the next flush.
+	 */
+	public void flush() throws IOException {
+		synchronized(flushLock) {
+			flushPending();
+		}
+	}
+	
+	private void flushPending() throws IOException {
+		List<Update> updates;
+		synchronized(this) {
+			scheduled = false;
+			updates = new ArrayList<Update>(pending.values());
+			pending.clear();
+			inflight = updates;
+		}
+		if (updates.isEmpty()) {
+			return;
+		}
+		List<Update> retry = new ArrayList<Update>();
+		ODataRunner runner = new ODataRunner(client, client.getRepository().newExecutionContext(SystemPrincipal.ROOT));
+		// a $batch is sent to the base path, with path parameters there can be more than one
+		Map<String, List<Update>> groups = new LinkedHashMap<String, List<Update>>();
+		for (Update update : updates) {
+			if (!groups.containsKey(update.getBasePath())) {
+				groups.put(update.getBasePath(), new ArrayList<Update>());
+			}
+			groups.get(update.getBasePath()).add(update);
+		}
+		List<List<Update>> chunks = new ArrayList<List<Update>>();
+		for (List<Update> group : groups.values()) {
+			for (int i = 0; i < group.size(); i += batchSize) {
+				chunks.add(group.subList(i, Math.min(group.size(), i + batchSize)));
+			}
+		}
+		for (List<Update> chunk : chunks) {
+			try {
+				List<HTTPResponse> responses = runner.sendUpdates(chunk);
+				for (int j = 0; j < chunk.size(); j++) {
+					// the server may have stopped processing the batch halfway, the updates it did not get to are tried again
+					if (j >= responses.size()) {
+						retry(chunk.get(j), 0, "No response received in the batch", retry);
+						continue;
+					}
+					int code = responses.get(j).getCode();
+					if (code == 429 || code >= 500) {
+						retry(chunk.get(j), code, getBody(chunk.get(j), responses.get(j)), retry);
+					}
+					// the update itself is wrong, retrying will not help
+					else if (code >= 300) {
+						reject(chunk.get(j), code, getBody(chunk.get(j), responses.get(j)));
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.warn("Could not send pending updates for " + client.getId() + ", they will be retried", e);
+				for (Update update : chunk) {
+					retry(update, 0, e.toString(), retry);
+				}
+			}
+		}
+		synchronized(this) {
+			// newer updates that arrived in the meantime win over the ones we are retrying
+			for (Update update : retry) {
+				Update newer = pending.get(update.getTarget());
+				pending.put(update.getTarget(), newer == null ? update : new Update(update.getBasePath(), update.getTarget(), update.getEntitySet(), merge(update.getContent(), newer.getContent()), update.getAttempts()));
+			}
+			inflight = new ArrayList<Update>();
+			compact();
+		}
+		if (!retry.isEmpty()) {
+			schedule(delay);
+		}
+	}
+
+	/**
+	 * Sends what is pending one last time, whatever can not be sent remains in the spool for the next start.
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+		}
+		try {
+			flush();
+		}
+		finally {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	// an update that keeps failing is eventually given up on, otherwise it would be retried forever
+	private void retry(Update update, int code, String body, List<Update> retry) {
+		Update next = new Update(update.getBasePath(), update.getTarget(), update.getEntitySet(), update.getContent(), update.getAttempts() + 1);
+		if (next.getAttempts() >= maxAttempts) {
+			logger.error("Giving up on the update of " + update.getTarget() + " for " + client.getId() + " after " + next.getAttempts() + " attempt(s)");
+			reject(update, code, body);
+		}
+		else {
+			retry.add(next);
+		}
+	}
+	
+	private String getBody(Update update, HTTPResponse response) {
+		try {
+			if (response.getContent() instanceof ContentPart) {
+				ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+				if (readable != null) {
+					try {
+						return new String(IOUtils.toBytes(readable), charset);
+					}
+					finally {
+						readable.close();
+					}
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Could not read the response for the update of " + update.getTarget() + " for " + client.getId(), e);
+		}
+		return null;
+	}
+	
+	// the update is dropped from the queue, make sure it does not disappear without a trace, the code is 0 if there was no response
+	private void reject(Update update, int code, String body) {
+		String content = new String(update.getContent(), charset);
+		logger.error("The update of " + update.getTarget() + " for " + client.getId() + " failed with code " + code + ": " + body);
+		if (spool != null) {
+			try {
+				writeDeadLetter(update, code, body);
+			}
+			catch (Exception e) {
+				logger.error("Could not write the rejected update of " + update.getTarget() + " for " + client.getId() + " to the dead letter file", e);
+			}
+		}
+		ODataWriteBehindFailureHandler handler = client.getWriteBehindFailureHandler();
+		if (handler != null) {
+			try {
+				handler.failed(client.getId(), update.getTarget(), update.getEntitySet(), code, content, body);
+			}
+			catch (Exception e) {
+				logger.error("The failure handler could not process the rejected update of " + update.getTarget() + " for " + client.getId(), e);
+			}
+		}
+	}
+	
+	// rejected updates are appended to {spool}.dead, one record at a time so nothing has to be rewritten
+	private synchronized void writeDeadLetter(Update update, int code, String response) throws IOException {
+		File parent = spool.getAbsoluteFile().getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(parent, spool.getName() + ".dead"), true)));
+		try {
+			output.writeUTF(update.getBasePath());
+			output.writeUTF(update.getTarget());
+			output.writeUTF(update.getEntitySet() == null ? "" : update.getEntitySet());
+			output.writeInt(code);
+			output.writeInt(update.getContent().length);
+			output.write(update.getContent());
+			byte[] bytes = response == null ? new byte[0] : response.getBytes(charset);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+		finally {
+			output.close();
+		}
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	// must be called while holding the lock, the update is only accepted once it is on disk
+	private void append(Update update) throws IOException {
+		if (spool == null) {
+			return;
+		}
+		File parent = spool.getAbsoluteFile().getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		write(output, update);
+		output.flush();
+		FileOutputStream file = new FileOutputStream(spool, true);
+		try {
+			file.write(bytes.toByteArray());
+			file.getChannel().force(false);
+		}
+		finally {
+			file.close();
+		}
+	}
+	
+	// must be called while holding the lock, rewrites the journal to what is still pending
+	private void compact() throws IOException {
+		if (spool == null) {
+			return;
+		}
+		if (pending.isEmpty() && inflight.isEmpty()) {
+			spool.delete();
+			return;
+		}
+		File parent = spool.getAbsoluteFile().getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		// write to a temporary file first so a crash halfway does not corrupt the spool
+		File temporary = new File(parent, spool.getName() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temporary);
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+			// the in flight updates come first, on recovery the pending ones are merged on top of them
+			for (Update update : inflight) {
+				write(output, update);
+			}
+			for (Update update : pending.values()) {
+				write(output, update);
+			}
+			output.flush();
+			file.getChannel().force(false);
+		}
+		finally {
+			file.close();
+		}
+		Files.move(temporary.toPath(), spool.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static void write(DataOutputStream output, Update update) throws IOException {
+		// marks the start of a record so the end of the journal can be told apart from a record that was cut off
+		output.writeByte(1);
+		output.writeUTF(update.getBasePath());
+		output.writeUTF(update.getTarget());
+		output.writeUTF(update.getEntitySet() == null ? "" : update.getEntitySet());
+		output.writeInt(update.getAttempts());
+		output.writeInt(update.getContent().length);
+		output.write(update.getContent());
+	}
+
+	private List<Update> read(File spool) throws IOException {
+		List<Update> updates = new ArrayList<Update>();
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(spool)));
+		try {
+			while (input.read() >= 0) {
+				try {
+					String basePath = input.readUTF();
+					String target = input.readUTF();
+					String entitySet = input.readUTF();
+					int attempts = input.readInt();
+					byte[] content = new byte[input.readInt()];
+					input.readFully(content);
+					updates.add(new Update(basePath, target, entitySet.isEmpty() ? null : entitySet, content, attempts));
+				}
+				// a crash while appending, that update was never accepted
+				catch (EOFException e) {
+					logger.warn("Ignoring the incomplete last update in " + spool);
+					break;
+				}
+			}
+		}
+		finally {
+			input.close();
+		}
+		return updates;
+	}
+
+	// the fields of the second update overwrite those of the first
+	private byte[] merge(byte[] first, byte[] second) {
+		return ODataJson.merge(new String(first, charset), new String(second, charset)).getBytes(charset);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Transactionable;
+
+/**
+ * Collects the writes that are done within a transaction, they are sent as a single $batch changeset (per base path) when the transaction is prepared or committed.
+ * The server applies the changeset as a whole or not at all, on rollback nothing is sent.
+ * Committing a transaction does not give the other participants a chance to roll back if the changeset is rejected, the flush service prepares the buffer up front so a rejection fails the flow before anything else is committed.
+ */
+public class ODataWriteBuffer implements Transactionable {
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private String id;
+	private ODataClient client;
+	private ExecutionContext executionContext;
+	// the entity sets are kept so we can evict the cached entities once the changes are applied, both are grouped per base path
+	private Map<String, List<String>> entitySets = new LinkedHashMap<String, List<String>>();
+	private Map<String, List<DefaultHTTPRequest>> requests = new LinkedHashMap<String, List<DefaultHTTPRequest>>();
+	// whether writes have already been sent in this transaction
+	private boolean prepared;
+
+	public ODataWriteBuffer(ODataClient client, ExecutionContext executionContext) {
+		this.id = getId(client);
+		this.client = client;
+		this.executionContext = executionContext;
+	}
+	
+	// there is one buffer per client in each transaction
+	public static String getId(ODataClient client) {
+		return "odata-writes:" + client.getId();
+	}
+
+	public synchronized void add(String basePath, String entitySet, DefaultHTTPRequest request) {
+		if (!requests.containsKey(basePath)) {
+			entitySets.put(basePath, new ArrayList<String>());
+			requests.put(basePath, new ArrayList<DefaultHTTPRequest>());
+		}
+		entitySets.get(basePath).add(entitySet);
+		requests.get(basePath).add(request);
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public void start() {
+		// nothing to do, requests are added as they come in
+	}
+	
+	/**
+	 * Sends what is buffered so far, if the server rejects it an exception is thrown while the transaction can still be rolled back.
+	 */
+	public void prepare() {
+		Map<String, List<String>> entitySets;
+		Map<String, List<DefaultHTTPRequest>> requests;
+		synchronized(this) {
+			entitySets = this.entitySets;
+			requests = this.requests;
+			this.entitySets = new LinkedHashMap<String, List<String>>();
+			this.requests = new LinkedHashMap<String, List<DefaultHTTPRequest>>();
+			if (!requests.isEmpty()) {
+				prepared = true;
+			}
+		}
+		for (String basePath : requests.keySet()) {
+			new ODataRunner(client, executionContext).flush(basePath, entitySets.get(basePath), requests.get(basePath));
+		}
+	}
+
+	@Override
+	public void commit() {
+		// anything that was added after the prepare is sent now
+		prepare();
+	}
+
+	@Override
+	public void rollback() {
+		synchronized(this) {
+			entitySets.clear();
+			requests.clear();
+			if (prepared) {
+				logger.warn("The transaction was rolled back after the buffered writes for " + client.getId() + " were sent, those can not be undone");
+			}
+		}
+	}
+}
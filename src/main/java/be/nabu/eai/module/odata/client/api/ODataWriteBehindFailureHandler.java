@@ -0,0 +1,28 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.odata.client.api;
+
+import javax.jws.WebParam;
+
+/**
+ * Called when the server rejects a queued update, retrying it would not help so it is no longer sent
+ */
+public interface ODataWriteBehindFailureHandler {
+	public void failed(@WebParam(name = "odataClientId") String odataClientId, @WebParam(name = "target") String target, @WebParam(name = "entitySet") String entitySet,
+		@WebParam(name = "code") Integer code, @WebParam(name = "content") String content, @WebParam(name = "response") String response);
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.eai.module.odata.client.ODataKeyCache;
+import be.nabu.eai.module.web.application.WebApplication;
+import be.nabu.eai.module.web.application.WebFragment;
+import be.nabu.eai.repository.api.Repository;
+import be.nabu.eai.repository.artifacts.jaxb.JAXBArtifact;
+import be.nabu.libs.authentication.api.Permission;
+import be.nabu.libs.events.api.EventSubscription;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.server.HTTPServerUtils;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.mime.api.ContentPart;
+
+/**
+ * Exposes the entity sets of an odata client as a read-only odata endpoint in a web application.
+ * All the consumers share a cache and identical concurrent reads result in a single call to the actual server.
+ */
+public class ODataGateway extends JAXBArtifact<ODataGatewayConfiguration> implements WebFragment {
+
+	public static final String METADATA = "$metadata";
+	
+	private Map<String, EventSubscription<HTTPRequest, HTTPResponse>> subscriptions = new HashMap<String, EventSubscription<HTTPRequest, HTTPResponse>>();
+	private ODataKeyCache cache;
+	private ConcurrentMap<String, CompletableFuture<ContentPart>> inflightReads = new ConcurrentHashMap<String, CompletableFuture<ContentPart>>();
+	
+	public ODataGateway(String id, ResourceContainer<?> directory, Repository repository) {
+		super(id, directory, repository, "odata-gateway.xml", ODataGatewayConfiguration.class);
+	}
+
+	@Override
+	public void start(WebApplication artifact, String path) throws IOException {
+		String key = getKey(artifact, path);
+		if (subscriptions.containsKey(key)) {
+			stop(artifact, path);
+		}
+		String fullPath = getFullPath(artifact, path);
+		EventSubscription<HTTPRequest, HTTPResponse> subscription = artifact.getDispatcher().subscribe(HTTPRequest.class, new ODataGatewayListener(this, artifact, fullPath));
+		subscription.filter(HTTPServerUtils.limitToPath(fullPath));
+		synchronized(subscriptions) {
+			subscriptions.put(key, subscription);
+		}
+	}
+
+	@Override
+	public void stop(WebApplication artifact, String path) {
+		String key = getKey(artifact, path);
+		synchronized(subscriptions) {
+			EventSubscription<HTTPRequest, HTTPResponse> subscription = subscriptions.remove(key);
+			if (subscription != null) {
+				subscription.unsubscribe();
+			}
+		}
+	}
+
+	// every exposed entity set has its own permission, the context is the gateway, the metadata has a permission of its own as it describes everything
+	@Override
+	public List<Permission> getPermissions(WebApplication artifact, String path) {
+		List<Permission> permissions = new ArrayList<Permission>();
+		List<String> actions = new ArrayList<String>(getExposedEntitySets());
+		actions.add(METADATA);
+		for (final String entitySet : actions) {
+			permissions.add(new Permission() {
+				@Override
+				public String getContext() {
+					return getId();
+				}
+				@Override
+				public String getAction() {
+					return entitySet;
+				}
+			});
+		}
+		return permissions;
+	}
+	
+	/**
+	 * The entity sets that can be read through the gateway
+	 */
+	public List<String> getExposedEntitySets() {
+		List<String> entitySets = getConfig().getEntitySets();
+		if ((entitySets == null || entitySets.isEmpty()) && getConfig().getClient() != null) {
+			entitySets = getConfig().getClient().getConfig().getEntitySets();
+		}
+		return entitySets == null ? new ArrayList<String>() : entitySets;
+	}
+
+	@Override
+	public boolean isStarted(WebApplication artifact, String path) {
+		return subscriptions.containsKey(getKey(artifact, path));
+	}
+	
+	/**
+	 * The responses of the server, shared by all the consumers
+	 */
+	public ODataKeyCache getCache() {
+		if (cache == null) {
+			synchronized(this) {
+				if (cache == null) {
+					cache = new ODataKeyCache(
+						getConfig().getMaxEntries() == null ? 10000 : getConfig().getMaxEntries(), 
+						getConfig().getTimeToLive() == null ? 60000 : getConfig().getTimeToLive());
+				}
+			}
+		}
+		return cache;
+	}
+	
+	/**
+	 * The reads that are currently being sent to the server
+	 */
+	public ConcurrentMap<String, CompletableFuture<ContentPart>> getInflightReads() {
+		return inflightReads;
+	}
+	
+	private String getKey(WebApplication artifact, String path) {
+		return artifact.getId() + ":" + path;
+	}
+	
+	private static String getFullPath(WebApplication artifact, String path) {
+		String fullPath = artifact.getServerPath();
+		if (path != null && !path.isEmpty() && !path.equals("/")) {
+			if (!fullPath.endsWith("/")) {
+				fullPath += "/";
+			}
+			fullPath += path.replaceFirst("^[/]+", "");
+		}
+		return fullPath.replaceFirst("[/]+$", "");
+	}
+}
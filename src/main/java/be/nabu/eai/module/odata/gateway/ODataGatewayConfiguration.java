@@ -0,0 +1,72 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+import be.nabu.eai.api.Advanced;
+import be.nabu.eai.module.odata.client.ODataClient;
+import be.nabu.eai.repository.jaxb.ArtifactXMLAdapter;
+import be.nabu.libs.types.api.annotation.Field;
+
+@XmlRootElement(name = "odataGateway")
+public class ODataGatewayConfiguration {
+	private ODataClient client;
+	// the entity sets that are exposed, if empty all the entity sets exposed by the client are available
+	private List<String> entitySets = new ArrayList<String>();
+	private Integer maxEntries;
+	private Long timeToLive;
+	
+	@Field(comment = "The odata client whose entity sets you want to expose")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public ODataClient getClient() {
+		return client;
+	}
+	public void setClient(ODataClient client) {
+		this.client = client;
+	}
+	
+	@Field(comment = "The entity sets that can be read through the gateway. If left empty, the entity sets selected in the client are available.")
+	public List<String> getEntitySets() {
+		return entitySets;
+	}
+	public void setEntitySets(List<String> entitySets) {
+		this.entitySets = entitySets;
+	}
+	
+	@Advanced
+	@Field(comment = "The maximum amount of responses that are cached, the least recently used are evicted first. Defaults to 10000.")
+	public Integer getMaxEntries() {
+		return maxEntries;
+	}
+	public void setMaxEntries(Integer maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+	
+	@Advanced
+	@Field(comment = "How long (in milliseconds) a cached response remains valid. Defaults to 60000.")
+	public Long getTimeToLive() {
+		return timeToLive;
+	}
+	public void setTimeToLive(Long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+}
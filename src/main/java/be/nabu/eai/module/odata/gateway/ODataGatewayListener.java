@@ -0,0 +1,375 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.gateway;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.nabu.eai.module.odata.client.ODataClient;
+import be.nabu.eai.module.odata.client.ODataRunner;
+import be.nabu.eai.module.odata.client.ODataUrlTemplate;
+import be.nabu.eai.module.web.application.WebApplication;
+import be.nabu.eai.module.web.application.WebApplicationUtils;
+import be.nabu.libs.authentication.api.PermissionHandler;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.HTTPException;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.libs.http.core.HTTPUtils;
+import be.nabu.libs.odata.ODataDefinition;
+import be.nabu.libs.odata.types.Function;
+import be.nabu.libs.odata.types.NavigationProperty;
+import be.nabu.libs.resources.URIUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Relays GET requests for the exposed entity sets to the actual server, e.g. /gateway/accounts(1)?$select=name becomes {basePath}/accounts(1)?$select=name
+ * Only the entity set itself, a single entity or the count can be read, the url is rebuilt from the parsed request rather than passed through.
+ */
+public class ODataGatewayListener implements EventHandler<HTTPRequest, HTTPResponse> {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// e.g. /accounts, /accounts(1) or /accounts/$count, navigation is not allowed
+	private static final Pattern RESOURCE = Pattern.compile("^/([\\w.]+)(?:\\(([^()/]*)\\))?(/\\$count)?$");
+	private static final Pattern QUOTED_KEY = Pattern.compile("^'(?:[^']|'')*'$");
+	private static final Pattern KEY = Pattern.compile("^[\\w.:+-]+$");
+	private static final Pattern LAMBDA = Pattern.compile("(?i)\\b(any|all)\\s*\\(");
+	private static final List<String> OPTIONS = Arrays.asList("$select", "$filter", "$orderby", "$top", "$skip", "$count", "$search", "$expand", "$skiptoken");
+	
+	private ODataGateway gateway;
+	private WebApplication application;
+	private String serverPath;
+
+	public ODataGatewayListener(ODataGateway gateway, WebApplication application, String serverPath) {
+		this.gateway = gateway;
+		this.application = application;
+		this.serverPath = serverPath;
+	}
+
+	@Override
+	public HTTPResponse handle(HTTPRequest request) {
+		try {
+			URI uri = HTTPUtils.getURI(request, false);
+			String path = uri.getRawPath();
+			if (path == null || !path.startsWith(serverPath)) {
+				return null;
+			}
+			String relative = path.substring(serverPath.length());
+			if (relative.isEmpty() || relative.equals("/")) {
+				throw new HTTPException(404);
+			}
+			if (!relative.startsWith("/")) {
+				relative = "/" + relative;
+			}
+			// it is a read-only gateway
+			if (!"GET".equalsIgnoreCase(request.getMethod())) {
+				throw new HTTPException(405);
+			}
+			// the consumer needs to be known, the server is called with the credentials of the client
+			Token token = WebApplicationUtils.getToken(application, request);
+			if (token == null) {
+				throw new HTTPException(401);
+			}
+			ODataClient client = gateway.getConfig().getClient();
+			if (client == null || client.getDefinition() == null) {
+				throw new HTTPException(503);
+			}
+			// the server might normalize these into a path we did not check
+			if (relative.contains("\\") || relative.contains("//") || relative.toLowerCase().matches(".*%(2f|5c|2e|00).*") || Arrays.asList(relative.split("/")).contains("..")) {
+				throw new HTTPException(400, "Invalid path: " + relative);
+			}
+			boolean metadata = ("/" + ODataGateway.METADATA).equals(relative);
+			boolean count = false;
+			String target;
+			PermissionHandler permissionHandler = application.getPermissionHandler();
+			if (metadata) {
+				if (permissionHandler != null && !permissionHandler.hasPermission(token, gateway.getId(), ODataGateway.METADATA)) {
+					throw new HTTPException(403);
+				}
+				target = relative;
+			}
+			else {
+				Matcher matcher = RESOURCE.matcher(relative);
+				if (!matcher.matches() || !gateway.getExposedEntitySets().contains(matcher.group(1))) {
+					throw new HTTPException(404);
+				}
+				String entitySet = matcher.group(1);
+				if (permissionHandler != null && !permissionHandler.hasPermission(token, gateway.getId(), entitySet)) {
+					throw new HTTPException(403);
+				}
+				count = matcher.group(3) != null;
+				target = getTarget(client, entitySet, matcher.group(2), count, uri.getRawQuery());
+			}
+			// http://docs.oasis-open.org/odata/odata/v4.01/odata-v4.01-part2-url-conventions.html#sec_AddressingtheCountofaCollection
+			String accept = metadata ? "application/xml" : (count ? "text/plain" : "application/json");
+			ContentPart relayed = read(client, token, target, accept);
+			byte[] content = IOUtils.toBytes(relayed.getReadable());
+			Header contentType = MimeUtils.getHeader("Content-Type", relayed.getHeaders());
+			
+			// links in the response (e.g. @odata.nextLink) should point to the gateway, not to the actual server
+			ODataDefinition definition = client.getDefinition();
+			String upstream = definition.getScheme() + "://" + definition.getHost() + definition.getBasePath();
+			String local = uri.getScheme() + "://" + uri.getRawAuthority() + serverPath;
+			if (!metadata && !count) {
+				content = new String(content, UTF8).replace(upstream, local).getBytes(UTF8);
+			}
+			PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+				new MimeHeader("Content-Length", Integer.toString(content.length)),
+				new MimeHeader("Content-Type", contentType == null ? accept : MimeUtils.getFullHeaderValue(contentType)),
+				new MimeHeader("OData-Version", "4.0")
+			);
+			part.setReopenable(true);
+			return new DefaultHTTPResponse(request, 200, "OK", part);
+		}
+		catch (HTTPException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new HTTPException(500, e);
+		}
+	}
+	
+	// the url for the server, built from the url template of the function that would do the same read
+	private String getTarget(ODataClient client, String entitySet, String key, boolean count, String rawQuery) throws Exception {
+		Function function = getFunction(client, entitySet, key != null);
+		if (function == null) {
+			throw new HTTPException(404);
+		}
+		ODataUrlTemplate template = client.getUrlTemplate(function);
+		StringBuilder builder = new StringBuilder(template.getEntitySetSegment());
+		if (key != null) {
+			// composite keys are not supported through the gateway
+			if (template.getKeys().size() != 1) {
+				throw new HTTPException(400, "Unsupported key for " + entitySet);
+			}
+			String literal = URIUtils.decodeURL(key);
+			if (!(template.getKeys().get(0).isQuoted() ? QUOTED_KEY : KEY).matcher(literal).matches()) {
+				throw new HTTPException(400, "Invalid key: " + literal);
+			}
+			builder.append('(').append(encode(literal)).append(')');
+		}
+		if (count) {
+			builder.append("/$count");
+		}
+		if (rawQuery != null && !rawQuery.isEmpty()) {
+			boolean first = true;
+			for (String parameter : rawQuery.split("&")) {
+				if (parameter.isEmpty()) {
+					continue;
+				}
+				int index = parameter.indexOf('=');
+				String name = URIUtils.decodeURL(index < 0 ? parameter : parameter.substring(0, index));
+				String value = index < 0 ? "" : URIUtils.decodeURL(parameter.substring(index + 1));
+				if (!OPTIONS.contains(name)) {
+					throw new HTTPException(400, "Unsupported query option: " + name);
+				}
+				if ("$expand".equals(name)) {
+					checkExpand(client, entitySet, value);
+				}
+				else if ("$filter".equals(name) || "$orderby".equals(name) || "$select".equals(name)) {
+					checkExpression(name, value);
+				}
+				builder.append(first ? '?' : '&').append(name).append('=').append(encode(value));
+				first = false;
+			}
+		}
+		return builder.toString();
+	}
+	
+	// the read by key or the list of the entity set
+	private static Function getFunction(ODataClient client, String entitySet, boolean byKey) {
+		List<Function> functions = client.getDefinition().getFunctions();
+		if (functions != null) {
+			for (Function function : functions) {
+				if (entitySet.equals(function.getContext()) && "GET".equalsIgnoreCase(function.getMethod())) {
+					boolean list = function.getInput().get("limit") != null;
+					if (byKey ? !list && !client.getUrlTemplate(function).getKeys().isEmpty() : list) {
+						return function;
+					}
+				}
+			}
+		}
+		return null;
+	}
+	
+	// you can only expand into entity sets that are exposed themselves
+	private void checkExpand(ODataClient client, String entitySet, String expand) {
+		ComplexType type = client.getEntitySetType(entitySet);
+		for (String item : splitTopLevel(expand)) {
+			item = item.trim();
+			int options = item.indexOf('(');
+			String name = (options < 0 ? item : item.substring(0, options)).trim();
+			if (name.isEmpty() || name.contains("/") || name.contains("*")) {
+				throw new HTTPException(400, "Unsupported expansion: " + item);
+			}
+			// we only check one level deep
+			if (options >= 0 && item.substring(options).contains("$expand")) {
+				throw new HTTPException(400, "Nested expansions are not supported: " + item);
+			}
+			// the options of the expansion (e.g. $filter) could otherwise be used to reach other entity sets
+			if (options >= 0) {
+				checkExpression("$expand", item.substring(options));
+			}
+			ComplexType target = null;
+			if (type instanceof DefinedType) {
+				for (NavigationProperty property : client.getNavigationProperties(((DefinedType) type).getId())) {
+					if (name.equals(property.getElement().getName()) && property.getElement().getType() instanceof ComplexType) {
+						target = (ComplexType) property.getElement().getType();
+					}
+				}
+			}
+			if (target == null || !isExposedType(client, target)) {
+				throw new HTTPException(403, "Can not expand: " + name);
+			}
+		}
+	}
+	
+	private boolean isExposedType(ODataClient client, ComplexType type) {
+		for (String entitySet : gateway.getExposedEntitySets()) {
+			ComplexType exposed = client.getEntitySetType(entitySet);
+			if (exposed != null && (exposed.equals(type) || (exposed instanceof DefinedType && type instanceof DefinedType && ((DefinedType) exposed).getId().equals(((DefinedType) type).getId())))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Expressions can only refer to the properties of the entity itself, paths (e.g. parentaccountid/revenue), lambdas (any/all) and $root/$it could reach entity sets that are not exposed.
+	 * String literals are left out of the check so they can contain anything.
+	 */
+	private static void checkExpression(String option, String expression) {
+		String withoutLiterals = expression.replaceAll("'(?:[^']|'')*'", "''");
+		if (withoutLiterals.contains("/") || withoutLiterals.contains("$root") || withoutLiterals.contains("$it") || LAMBDA.matcher(withoutLiterals).find()) {
+			throw new HTTPException(400, "Paths and lambda expressions are not supported in " + option + ": " + expression);
+		}
+	}
+	
+	// splits on the commas that are not within parentheses
+	private static List<String> splitTopLevel(String value) {
+		List<String> parts = new ArrayList<String>();
+		int depth = 0, start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			if (character == '(') {
+				depth++;
+			}
+			else if (character == ')') {
+				depth--;
+			}
+			else if (character == ',' && depth == 0) {
+				parts.add(value.substring(start, i));
+				start = i + 1;
+			}
+		}
+		parts.add(value.substring(start));
+		return parts;
+	}
+	
+	private static String encode(String value) throws Exception {
+		return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+	}
+	
+	// reads are cached and identical concurrent reads share the same call, the content type of the server is kept along with the content
+	private ContentPart read(ODataClient client, Token token, String target, String accept) throws Exception {
+		byte[] cached = gateway.getCache().get(target, "");
+		byte[] cachedType = gateway.getCache().get(target, "Content-Type");
+		if (cached != null && cachedType != null) {
+			return newPart(cached, new String(cachedType, UTF8));
+		}
+		CompletableFuture<ContentPart> future = new CompletableFuture<ContentPart>();
+		CompletableFuture<ContentPart> existing = gateway.getInflightReads().putIfAbsent(target, future);
+		if (existing != null) {
+			try {
+				return existing.get();
+			}
+			catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		try {
+			HTTPResponse response;
+			try {
+				response = new ODataRunner(client, client.getRepository().newExecutionContext(token)).relay(target, accept);
+			}
+			catch (HTTPException e) {
+				// authentication against the actual server is our problem, not that of the consumer
+				throw e.getCode() == 401 || e.getCode() == 403 ? new HTTPException(502, e) : e;
+			}
+			byte[] content = new byte[0];
+			String contentType = accept;
+			if (response.getContent() != null) {
+				Header header = MimeUtils.getHeader("Content-Type", response.getContent().getHeaders());
+				if (header != null) {
+					contentType = MimeUtils.getFullHeaderValue(header);
+				}
+				if (response.getContent() instanceof ContentPart) {
+					ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+					if (readable != null) {
+						try {
+							content = IOUtils.toBytes(readable);
+						}
+						finally {
+							readable.close();
+						}
+					}
+				}
+			}
+			gateway.getCache().put(target, "", content);
+			gateway.getCache().put(target, "Content-Type", contentType.getBytes(UTF8));
+			ContentPart part = newPart(content, contentType);
+			future.complete(part);
+			return part;
+		}
+		catch (Exception e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			gateway.getInflightReads().remove(target, future);
+		}
+	}
+	
+	// can be read by every consumer that shares the read
+	private static ContentPart newPart(byte[] content, String contentType) {
+		PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Content-Length", Integer.toString(content.length)),
+			new MimeHeader("Content-Type", contentType)
+		);
+		part.setReopenable(true);
+		return part;
+	}
+}
@@ -0,0 +1,214 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.client;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+public class ODataBatchTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	public void testBuild() throws IOException {
+		ODataBatch batch = new ODataBatch("https", "example.com");
+		batch.addChangeset(Arrays.asList(
+			newRequest("PATCH", "/api/accounts(1)", "{\"name\":\"first\"}"),
+			newRequest("DELETE", "/api/accounts(2)", null)
+		));
+		batch.addRequest(newRequest("GET", "/api/accounts(3)", null));
+		assertEquals(3, batch.size());
+		
+		String contentType = batch.getContentType();
+		assertTrue(contentType.matches("multipart/mixed; boundary=batch_[0-9a-f]{32}"));
+		String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+		
+		String content = new String(batch.getContent(), UTF8);
+		assertTrue(content.startsWith("--" + boundary + "\r\nContent-Type: multipart/mixed; boundary=changeset_"));
+		assertTrue(content.endsWith("--" + boundary + "--\r\n"));
+		// the changeset is closed before the independent request
+		String changeset = content.replaceAll("(?s)^.*?boundary=(changeset_[0-9a-f]{32}).*$", "$1");
+		assertTrue(content.indexOf("--" + changeset + "--\r\n") < content.indexOf("GET https://example.com/api/accounts(3) HTTP/1.1"));
+		// relative targets are made absolute, the host and length are not copied
+		assertTrue(content.contains("PATCH https://example.com/api/accounts(1) HTTP/1.1\r\n"));
+		assertTrue(content.contains("DELETE https://example.com/api/accounts(2) HTTP/1.1\r\n"));
+		assertFalse(content.contains("Host:"));
+		assertFalse(content.contains("Content-Length:"));
+		assertTrue(content.contains("\r\n\r\n{\"name\":\"first\"}\r\n"));
+		// content ids are numbered over the whole batch
+		assertTrue(content.contains("Content-ID: 1\r\n"));
+		assertTrue(content.contains("Content-ID: 2\r\n"));
+		assertTrue(content.contains("Content-ID: 3\r\n"));
+		
+		// every batch has its own boundary
+		assertFalse(contentType.equals(new ODataBatch("https", "example.com").getContentType()));
+	}
+	
+	public void testParse() throws IOException {
+		ODataBatch batch = newBatch();
+		String response = "--batchresponse_1\r\n"
+			+ "Content-Type: multipart/mixed; boundary=changesetresponse_1\r\n\r\n"
+			+ "--changesetresponse_1\r\n"
+			+ "Content-Type: application/http\r\n"
+			+ "Content-Transfer-Encoding: binary\r\n"
+			+ "Content-ID: 1\r\n\r\n"
+			+ "HTTP/1.1 204 No Content\r\n"
+			+ "OData-Version: 4.0\r\n\r\n\r\n"
+			+ "--changesetresponse_1\r\n"
+			+ "Content-Type: application/http\r\n"
+			+ "Content-Transfer-Encoding: binary\r\n"
+			+ "Content-ID: 2\r\n\r\n"
+			+ "HTTP/1.1 201 Created\r\n"
+			+ "Content-Type: application/json\r\n\r\n"
+			+ "{\"id\":2}\r\n"
+			+ "--changesetresponse_1--\r\n"
+			+ "--batchresponse_1\r\n"
+			+ "Content-Type: application/http\r\n"
+			+ "Content-Transfer-Encoding: binary\r\n\r\n"
+			+ "HTTP/1.1 200 OK\r\n"
+			+ "Content-Type: application/json\r\n\r\n"
+			+ "{\"id\":3}\r\n"
+			+ "--batchresponse_1--\r\n";
+		List<HTTPResponse> responses = batch.parse(newResponse(response, "batchresponse_1"));
+		assertEquals(3, responses.size());
+		assertEquals(204, responses.get(0).getCode());
+		assertEquals(201, responses.get(1).getCode());
+		assertEquals("{\"id\":2}", getBody(responses.get(1)));
+		assertEquals(200, responses.get(2).getCode());
+		assertEquals("{\"id\":3}", getBody(responses.get(2)));
+	}
+	
+	public void testParseFailedChangeset() throws IOException {
+		ODataBatch batch = newBatch();
+		// a failed changeset is answered with a single response instead of a nested multipart
+		String response = "--batchresponse_2\r\n"
+			+ "Content-Type: application/http\r\n"
+			+ "Content-Transfer-Encoding: binary\r\n\r\n"
+			+ "HTTP/1.1 400 Bad Request\r\n"
+			+ "Content-Type: application/json\r\n\r\n"
+			+ "{\"error\":{\"message\":\"invalid\"}}\r\n"
+			+ "--batchresponse_2\r\n"
+			+ "Content-Type: application/http\r\n"
+			+ "Content-Transfer-Encoding: binary\r\n\r\n"
+			+ "HTTP/1.1 200 OK\r\n"
+			+ "Content-Type: application/json\r\n\r\n"
+			+ "{\"id\":3}\r\n"
+			+ "--batchresponse_2--\r\n";
+		List<HTTPResponse> responses = batch.parse(newResponse(response, "batchresponse_2"));
+		assertEquals(3, responses.size());
+		// every request in the changeset gets the response of the changeset
+		assertEquals(400, responses.get(0).getCode());
+		assertEquals(400, responses.get(1).getCode());
+		assertEquals("{\"error\":{\"message\":\"invalid\"}}", getBody(responses.get(1)));
+		assertEquals(200, responses.get(2).getCode());
+	}
+	
+	public void testParseUnexpectedAmountOfParts() throws IOException {
+		ODataBatch batch = newBatch();
+		String response = "--batchresponse_3\r\n"
+			+ "Content-Type: application/http\r\n\r\n"
+			+ "HTTP/1.1 200 OK\r\n\r\n\r\n"
+			+ "--batchresponse_3--\r\n";
+		try {
+			batch.parse(newResponse(response, "batchresponse_3"));
+			fail("A response with fewer parts than requested should be rejected");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testParsePartial() throws IOException {
+		ODataBatch batch = new ODataBatch("https", "example.com");
+		batch.addRequest(newRequest("PATCH", "/api/accounts(1)", "{\"name\":\"first\"}"));
+		batch.addRequest(newRequest("PATCH", "/api/accounts(2)", "{\"name\":\"second\"}"));
+		batch.addRequest(newRequest("PATCH", "/api/accounts(3)", "{\"name\":\"third\"}"));
+		// the server stopped after the failed second update
+		String response = "--batchresponse_4\r\n"
+			+ "Content-Type: application/http\r\n\r\n"
+			+ "HTTP/1.1 204 No Content\r\n\r\n\r\n"
+			+ "--batchresponse_4\r\n"
+			+ "Content-Type: application/http\r\n\r\n"
+			+ "HTTP/1.1 503 Service Unavailable\r\n\r\n\r\n"
+			+ "--batchresponse_4--\r\n";
+		List<HTTPResponse> responses = batch.parse(newResponse(response, "batchresponse_4"), true);
+		assertEquals(2, responses.size());
+		assertEquals(204, responses.get(0).getCode());
+		assertEquals(503, responses.get(1).getCode());
+		try {
+			batch.parse(newResponse(response, "batchresponse_4"));
+			fail("A response with fewer parts than requested should be rejected unless partial responses are allowed");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	// a changeset of two requests followed by an independent request
+	private static ODataBatch newBatch() {
+		ODataBatch batch = new ODataBatch("https", "example.com");
+		batch.addChangeset(Arrays.asList(
+			newRequest("PATCH", "/api/accounts(1)", "{\"name\":\"first\"}"),
+			newRequest("POST", "/api/accounts", "{\"name\":\"second\"}")
+		));
+		batch.addRequest(newRequest("GET", "/api/accounts(3)", null));
+		return batch;
+	}
+	
+	private static HTTPRequest newRequest(String method, String target, String body) {
+		if (body == null) {
+			return new DefaultHTTPRequest(method, target, new PlainMimeEmptyPart(null,
+				new MimeHeader("Content-Length", "0"),
+				new MimeHeader("Host", "example.com")
+			));
+		}
+		byte[] bytes = body.getBytes(UTF8);
+		PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+			new MimeHeader("Content-Length", Integer.toString(bytes.length)),
+			new MimeHeader("Content-Type", "application/json"),
+			new MimeHeader("Host", "example.com")
+		);
+		part.setReopenable(true);
+		return new DefaultHTTPRequest(method, target, part);
+	}
+	
+	private static HTTPResponse newResponse(String content, String boundary) {
+		byte[] bytes = content.getBytes(UTF8);
+		PlainMimeContentPart part = new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+			new MimeHeader("Content-Length", Integer.toString(bytes.length)),
+			new MimeHeader("Content-Type", "multipart/mixed; boundary=" + boundary)
+		);
+		part.setReopenable(true);
+		return new DefaultHTTPResponse(200, "OK", part);
+	}
+	
+	private static String getBody(HTTPResponse response) throws IOException {
+		return new String(IOUtils.toBytes(((ContentPart) response.getContent()).getReadable()), UTF8);
+	}
+}
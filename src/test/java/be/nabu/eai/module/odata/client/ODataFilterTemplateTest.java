@@ -0,0 +1,257 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.converter.ConverterFactory;
+
+/**
+ * The compiled templates must generate exactly the same $filter as the string concatenation they replaced.
+ */
+public class ODataFilterTemplateTest extends TestCase {
+
+	private ODataRunner runner = new ODataRunner(null, null);
+
+	public void testLike() {
+		assertEquivalent("contains( name , 'abc')", filter("name", "like", false, false, "%abc%"));
+		assertEquivalent("contains( tolower(name) , tolower('abc'))", filter("name", "like", false, true, "%abc%"));
+		assertEquivalent(filter("name", "ilike", false, true, "abc"));
+	}
+
+	public void testNotLike() {
+		assertEquivalent(" not(contains( name , 'abc'))", filter("name", "not like", false, false, "%abc%"));
+		assertEquivalent(filter("name", "not ilike", false, true, "%abc%"));
+		assertEquivalent(filter("name", "NOT LIKE", false, false, "abc"));
+	}
+
+	public void testNull() {
+		assertEquivalent(" name eq null", filter("name", "is null", false, false));
+		assertEquivalent(" name ne null", filter("name", "is not null", false, false));
+		// a boolean value of true applies the filter, false applies the inverse and null skips it
+		assertEquivalent(" name eq null", filter("name", "is null", false, false, true));
+		assertEquivalent(" name ne null", filter("name", "is null", false, false, false));
+		assertEquivalent(" name eq null", filter("name", "is not null", false, false, false));
+		assertEquivalent("", filter("name", "is null", false, false, (Object) null));
+		assertEquivalent(" id eq 1", filter("id", "=", false, false, 1), filter("name", "is not null", false, false, (Object) null));
+	}
+
+	public void testIn() {
+		assertEquivalent(" id in ('a','b','c')", filter("id", "=", false, false, "a", "b", "c"));
+		assertEquivalent(" not( id in ('a','b'))", filter("id", "<>", false, false, "a", "b"));
+		assertEquivalent(" id in (1,2)", filter("id", "=", false, false, 1, 2));
+		assertEquivalent(" tolower(id) in (tolower('a'),tolower('B'))", filter("id", "=", false, true, "a", "B"));
+		assertEquivalent(" id eq 'a'", filter("id", "=", false, false, "a"));
+	}
+
+	public void testDates() {
+		Date first = new Date(1700000000000l);
+		Date second = new Date(1710000000000l);
+		String formatted = ConverterFactory.getInstance().getConverter().convert(first, String.class) + "Z";
+		assertEquivalent(" created gt " + formatted, filter("created", ">", false, false, first));
+		assertEquivalent(filter("created", "=", false, false, first, second));
+		assertEquivalent(filter("created", ">=", false, false, first), filter("created", "<", false, false, second));
+	}
+
+	public void testNested() {
+		assertEquivalent(" a eq 1 and ( b eq 2 or c eq 3) and d eq 4",
+			filter("a", "=", false, false, 1),
+			filter("b", "=", false, false, 2),
+			filter("c", "=", true, false, 3),
+			filter("d", "=", false, false, 4));
+		assertEquivalent(
+			filter("a", "like", false, true, "x"),
+			filter("b", "is null", true, false, false),
+			filter("c", "=", true, false, "1", "2"),
+			filter("d", "<>", false, false, 4),
+			filter("e", "not like", true, false, "y"));
+		// the or is still open at the end
+		assertEquivalent(
+			filter("a", "=", false, false, 1),
+			filter("b", "=", true, false, 2));
+		// skipped filters in the middle of an or
+		assertEquivalent(
+			filter("a", "=", false, false, 1),
+			filter("b", "is null", true, false, (Object) null),
+			filter("c", "=", true, false, 3));
+	}
+
+	public void testReuse() {
+		// the template is compiled for one set of values and bound with another one with the same shape
+		List<Filter> first = Arrays.asList(filter("name", "like", false, true, "a"), filter("id", "=", true, false, 1, 2), filter("created", "<", false, false, new Date(0)));
+		List<Filter> second = Arrays.asList(filter("name", "like", false, true, "b"), filter("id", "=", true, false, 3, 4), filter("created", "<", false, false, new Date()));
+		ODataFilterTemplate template = runner.compileFilter(first);
+		assertEquals(legacy(first), template.bind(first, null));
+		assertEquals(legacy(second), template.bind(second, null));
+	}
+
+	public void testAliases() {
+		List<Filter> filters = Arrays.asList(filter("name", "=", false, false, "a"), filter("id", "=", false, false, 1, 2), filter("code", "like", false, true, "%b%"));
+		Map<String, String> aliases = new LinkedHashMap<String, String>();
+		assertEquals(" name eq @p1 and id in (1,2) and contains( tolower(code) , tolower(@p2))", runner.compileFilter(filters).bind(filters, aliases));
+		assertEquals(2, aliases.size());
+		assertEquals("'a'", aliases.get("@p1"));
+		assertEquals("'b'", aliases.get("@p2"));
+	}
+
+	private void assertEquivalent(Filter...filters) {
+		List<Filter> list = Arrays.asList(filters);
+		assertEquals(legacy(list), runner.buildFilter(list));
+	}
+
+	private void assertEquivalent(String expected, Filter...filters) {
+		List<Filter> list = Arrays.asList(filters);
+		assertEquals(expected, legacy(list));
+		assertEquals(expected, runner.buildFilter(list));
+	}
+
+	private static Filter filter(String key, String operator, boolean or, boolean caseInsensitive, Object...values) {
+		Filter filter = new Filter();
+		filter.setKey(key);
+		filter.setOperator(operator);
+		filter.setOr(or);
+		filter.setCaseInsensitive(caseInsensitive);
+		if (values.length > 0) {
+			filter.setValues(new ArrayList<Object>(Arrays.asList(values)));
+		}
+		return filter;
+	}
+
+	// the string concatenation that was used before the filters were compiled
+	private static String legacy(List<Filter> filters) {
+		String where = "";
+		boolean openOr = false;
+		for (int i = 0; i < filters.size(); i++) {
+			Filter filter = filters.get(i);
+			if (filter.getKey() == null) {
+				continue;
+			}
+			if (ODataRunner.skipFilter(filter)) {
+				continue;
+			}
+			if (!where.isEmpty()) {
+				if (filter.isOr()) {
+					where += " or";
+				}
+				else {
+					where += " and";
+				}
+			}
+			Filter nextFilter = i < filters.size() - 1 ? filters.get(i + 1) : null;
+			if (!openOr && nextFilter != null && nextFilter.isOr()) {
+				where += " (";
+				openOr = true;
+			}
+			boolean inverse = ODataRunner.inverseFilter(filter);
+			String operator = filter.getOperator();
+			if (filter.getValues() != null && filter.getValues().size() >= 2) {
+				if (operator.equals("=")) {
+					operator = "in";
+				}
+				else if (operator.equals("<>")) {
+					operator = "in";
+					inverse = true;
+				}
+			}
+			if (operator.toLowerCase().equals("not like") || operator.toLowerCase().equals("not ilike")) {
+				operator = "like";
+				inverse = true;
+			}
+			if (inverse && operator.toLowerCase().equals("is null")) {
+				operator = "is not null";
+				inverse = false;
+			}
+			else if (inverse && operator.toLowerCase().equals("is not null")) {
+				operator = "is null";
+				inverse = false;
+			}
+			else if (inverse) {
+				where += " not(";
+			}
+			if (operator.equals("like")) {
+				where += "contains(";
+			}
+			if (filter.isCaseInsensitive()) {
+				where += " tolower(" + filter.getKey() + ")";
+			}
+			else {
+				where += " " + filter.getKey();
+			}
+			where += " " + ODataRunner.mapOperator(operator);
+			if (filter.getValues() != null && !filter.getValues().isEmpty() && (ODataRunner.inputOperators.contains(operator) || "in".equals(operator))) {
+				if (filter.getValues().size() == 1) {
+					Object object = filter.getValues().get(0);
+					if (operator.equals("like")) {
+						object = object.toString().replace("%", "");
+					}
+					if (filter.isCaseInsensitive()) {
+						where += " tolower('" + object + "')";
+					}
+					else if (object instanceof Date) {
+						where += " " + ConverterFactory.getInstance().getConverter().convert(object, String.class) + "Z";
+					}
+					else {
+						where += " " + (object instanceof String ? "'" + object + "'" : object);
+					}
+				}
+				else {
+					where += " (";
+					boolean first = true;
+					for (Object single : filter.getValues()) {
+						if (first) {
+							first = false;
+						}
+						else {
+							where += ",";
+						}
+						if (filter.isCaseInsensitive()) {
+							where += "tolower('" + single + "')";
+						}
+						else if (single instanceof Date) {
+							where += " " + ConverterFactory.getInstance().getConverter().convert(single, String.class) + "Z";
+						}
+						else {
+							where += (single instanceof String ? "'" + single + "'" : single);
+						}
+					}
+					where += ")";
+				}
+			}
+			if (operator.equals("like")) {
+				where += ")";
+			}
+			if (inverse) {
+				where += ")";
+			}
+			if (nextFilter != null && openOr && !nextFilter.isOr()) {
+				where += ")";
+				openOr = false;
+			}
+		}
+		if (openOr) {
+			where += ")";
+		}
+		return where;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+* Copyright (C) 2022 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.odata.client;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ODataKeyScannerTest extends TestCase {
+
+	public void testScan() throws IOException {
+		ODataKeyScanner scanner = scan("{\"@odata.context\":\"https://example.com/$metadata#accounts(id)\",\"value\":[{\"id\":\"a\"},{\"id\":\"b\"}],\"@odata.nextLink\":\"https://example.com/accounts?$skiptoken=2\"}");
+		assertEquals(Arrays.asList("a", "b"), scanner.getKeys());
+		assertEquals("https://example.com/accounts?$skiptoken=2", scanner.getNextLink());
+	}
+
+	public void testNextLinkBeforeValue() throws IOException {
+		ODataKeyScanner scanner = scan("{ \"@odata.nextLink\" : \"next\" ,\n\t\"value\" : [ { \"id\" : 1 } , { \"id\" : 2 } ] }");
+		assertEquals(Arrays.asList("1", "2"), scanner.getKeys());
+		assertEquals("next", scanner.getNextLink());
+	}
+
+	public void testWithoutNextLink() throws IOException {
+		ODataKeyScanner scanner = scan("{\"value\":[]}");
+		assertTrue(scanner.getKeys().isEmpty());
+		assertNull(scanner.getNextLink());
+	}
+
+	public void testEscapes() throws IOException {
+		ODataKeyScanner scanner = scan("{\"value\":[{\"id\":\"a\\\"b\"},{\"id\":\"c\\\\d\\/e\"},{\"id\":\"\\u00e9\\u20AC\"},{\"id\":\"x\\ny\\tz\"}],\"@odata.nextLink\":\"https:\\/\\/example.com\"}");
+		assertEquals(Arrays.asList("a\"b", "c\\d/e", "\u00e9\u20ac", "x\ny\tz"), scanner.getKeys());
+		assertEquals("https://example.com", scanner.getNextLink());
+	}
+
+	public void testSkipNested() throws IOException {
+		// the field is only read at the top level of the entity, nested values and other fields are skipped
+		ODataKeyScanner scanner = scan("{\"value\":[{\"name\":\"[{\\\"id\\\":1}]\",\"parent\":{\"id\":\"nested\",\"children\":[{\"id\":\"deeper\"}]},\"id\":\"a\",\"tags\":[1,[2,3],{\"id\":4}],\"active\":true,\"amount\":12.5e3},{\"id\":null},{\"id\":{\"complex\":1}},\"notAnEntity\",{\"id\":false}],\"other\":{\"value\":[{\"id\":\"ignored\"}]}}");
+		assertEquals(Arrays.asList("a", "false"), scanner.getKeys());
+	}
+
+	public void testTruncatedUnicode() {
+		assertFailure("{\"value\":[{\"id\":\"\\u00");
+		assertFailure("{\"value\":[{\"id\":\"\\u00zz\"}]}");
+		assertFailure("{\"value\":[{\"id\":\"\\");
+	}
+
+	public void testTruncated() {
+		assertFailure("{\"value\":[{\"id\":\"a");
+		assertFailure("{\"value\":[{\"id\":\"a\"}");
+		assertFailure("{\"value\":[{\"id\":\"a\",\"nested\":{\"b\":[1,2");
+		assertFailure("[]");
+	}
+
+	private static ODataKeyScanner scan(String content) throws IOException {
+		ODataKeyScanner scanner = new ODataKeyScanner(new StringReader(content), "id");
+		scanner.scan();
+		return scanner;
+	}
+
+	private static void assertFailure(String content) {
+		try {
+			scan(content);
+			fail("Expected the scan to fail for: " + content);
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+}